@@ -1,25 +1,55 @@
 package com.example.demo;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import com.example.demo.security.BoundedPasswordEncoder;
+import com.example.demo.security.PasswordHashingExecutor;
+import com.example.demo.security.UpgradingBCryptPasswordEncoder;
 
 @EnableJpaRepositories("com.example.demo.model.persistence.repositories")
 @EntityScan("com.example.demo.model.persistence")
 @SpringBootApplication(exclude = {SecurityAutoConfiguration.class})
+@EnableScheduling
 public class SareetaApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(SareetaApplication.class, args);
 	}
 
+	/**
+	 * bcrypt at a fixed strength if one is configured, otherwise calibrated at startup against the target
+	 * hash latency for this host.
+	 */
+	@Bean
+	public BCryptPasswordEncoder bCryptPasswordEncoder(
+			@Value("${security.password.bcrypt-strength:0}") int strength,
+			@Value("${security.password.target-hash-millis:250}") long targetHashMillis,
+			@Value("${security.password.min-strength:10}") int minStrength,
+			@Value("${security.password.max-strength:14}") int maxStrength) {
+		if (strength > 0) {
+			return new UpgradingBCryptPasswordEncoder(strength);
+		}
+		return UpgradingBCryptPasswordEncoder.calibrated(targetHashMillis, minStrength, maxStrength);
+	}
+
+	/**
+	 * The encoder everything should use: bcrypt, but run on the size-capped password hashing pool.
+	 */
 	@Bean
-	public BCryptPasswordEncoder bCryptPasswordEncoder(){
-		return new BCryptPasswordEncoder();
+	@Primary
+	public PasswordEncoder passwordEncoder(BCryptPasswordEncoder bCryptPasswordEncoder,
+			PasswordHashingExecutor passwordHashingExecutor) {
+		return new BoundedPasswordEncoder(bCryptPasswordEncoder, passwordHashingExecutor);
 	}
 
 }
@@ -1,45 +1,104 @@
 package com.example.demo.controllers;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.IntStream;
+import java.util.Set;
+import java.util.function.BiFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.Item;
 import com.example.demo.model.persistence.User;
-import com.example.demo.model.persistence.repositories.CartRepository;
 import com.example.demo.model.persistence.repositories.ItemRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.requests.BatchModifyCartRequest;
+import com.example.demo.model.requests.CartOperation;
 import com.example.demo.model.requests.ModifyCartRequest;
+import com.example.demo.model.responses.BatchModifyCartResponse;
+import com.example.demo.model.responses.CartOperationError;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.CartStore;
+import com.example.demo.service.InventoryService;
+import com.example.demo.service.OutOfStockException;
+import com.example.demo.service.StockReservations;
 
 @RestController
 @RequestMapping("/api/cart")
 public class CartController {
 
 	private static final Logger log = LoggerFactory.getLogger(CartController.class);
+
+	private static final int MAX_BATCH_OPERATIONS = 500;
 	
 	@Autowired
 	private UserRepository userRepository;
 	
 	@Autowired
-	private CartRepository cartRepository;
+	private CartStore cartStore;
 	
 	@Autowired
 	private ItemRepository itemRepository;
+
+	@Autowired
+	private InventoryService inventoryService;
 	
+	/**
+	 * Returns the cart of a user tagged with a strong ETag taken from the cart's revision. A request whose
+	 * If-None-Match still holds that tag gets a 304 before the cart is loaded or serialized.
+	 */
+	@GetMapping("/{username}")
+	public ResponseEntity<Cart> getCart(@PathVariable String username,
+			@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not read the cart of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		Long cartId = findCartId(username, principal);
+		String revision = cartId == null ? null : cartStore.revision(cartId);
+		if(revision == null) {
+			log.error("User {} not found", username);
+			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		}
+		String etag = "\"" + revision + "\"";
+		if(matches(ifNoneMatch, etag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(CacheControl.noCache()).eTag(etag).build();
+		}
+		Cart cart = cartStore.get(cartId);
+		if(cart == null) {
+			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		}
+		return ResponseEntity.ok().cacheControl(CacheControl.noCache()).eTag(etag).body(cart);
+	}
+
 	@PostMapping("/addToCart")
-	public ResponseEntity<Cart> addTocart(@RequestBody ModifyCartRequest request) {
-		User user = userRepository.findByUsername(request.getUsername());
-		if(user == null) {
+	public ResponseEntity<Cart> addTocart(@RequestBody ModifyCartRequest request,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(request.getUsername())) {
+			log.error("User {} may not modify the cart of {}", principal.getName(), request.getUsername());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		Long cartId = findCartId(request.getUsername(), principal);
+		if(cartId == null) {
 			log.error("User {} not found", request.getUsername());
 			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
 		}
@@ -48,18 +107,26 @@ public class CartController {
 			log.error("Item with ID {} not found", request.getItemId());
 			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
 		}
-		Cart cart = user.getCart();
-		IntStream.range(0, request.getQuantity())
-			.forEach(i -> cart.addItem(item.get()));
-		cartRepository.save(cart);
+		ResponseEntity<Cart> response = modify(cartId, (cart, stock) -> {
+			if(!stock.reserve(request.getItemId(), request.getQuantity())) {
+				throw new OutOfStockException(request.getItemId());
+			}
+			cart.addItem(item.get(), request.getQuantity());
+			return cart;
+		});
 		log.info("Item has been added to cart");
-		return ResponseEntity.ok(cart);
+		return response;
 	}
 	
 	@PostMapping("/removeFromCart")
-	public ResponseEntity<Cart> removeFromcart(@RequestBody ModifyCartRequest request) {
-		User user = userRepository.findByUsername(request.getUsername());
-		if(user == null) {
+	public ResponseEntity<Cart> removeFromcart(@RequestBody ModifyCartRequest request,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(request.getUsername())) {
+			log.error("User {} may not modify the cart of {}", principal.getName(), request.getUsername());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		Long cartId = findCartId(request.getUsername(), principal);
+		if(cartId == null) {
 			log.error("User {} not found", request.getUsername());
 			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
 		}
@@ -68,12 +135,161 @@ public class CartController {
 			log.error("Item with ID {} not found", request.getItemId());
 			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
 		}
-		Cart cart = user.getCart();
-		IntStream.range(0, request.getQuantity())
-			.forEach(i -> cart.removeItem(item.get()));
-		cartRepository.save(cart);
-		log.info("Item has been added to cart");
-		return ResponseEntity.ok(cart);
+		ResponseEntity<Cart> response = modify(cartId, (cart, stock) -> {
+			stock.release(request.getItemId(), cart.removeItem(item.get(), request.getQuantity()));
+			return cart;
+		});
+		log.info("Item has been removed from cart");
+		return response;
+	}
+
+	/**
+	 * Applies a list of add, remove and set quantity operations to a cart with one item lookup and one save.
+	 * Operations that can't be applied are skipped and reported back alongside the resulting cart.
+	 */
+	@PostMapping("/batch")
+	public ResponseEntity<BatchModifyCartResponse> batchModify(@RequestBody BatchModifyCartRequest request,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(request.getUsername())) {
+			log.error("User {} may not modify the cart of {}", principal.getName(), request.getUsername());
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		List<CartOperation> operations = request.getOperations();
+		if(operations == null || operations.isEmpty() || operations.size() > MAX_BATCH_OPERATIONS) {
+			log.error("Batch for {} must hold between 1 and {} operations", request.getUsername(), MAX_BATCH_OPERATIONS);
+			return ResponseEntity.badRequest().build();
+		}
+		Long cartId = findCartId(request.getUsername(), principal);
+		if(cartId == null) {
+			log.error("User {} not found", request.getUsername());
+			return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+		}
+		Set<Long> itemIds = new HashSet<>();
+		for(CartOperation operation : operations) {
+			if(operation != null) {
+				itemIds.add(operation.getItemId());
+			}
+		}
+		Map<Long, Item> items = new HashMap<>();
+		itemRepository.findAllById(itemIds).forEach(item -> items.put(item.getId(), item));
+
+		ResponseEntity<BatchModifyCartResponse> response = modify(cartId, (cart, stock) -> {
+			List<CartOperationError> errors = new ArrayList<>();
+			for(int i = 0; i < operations.size(); i++) {
+				String error = apply(cart, stock, operations.get(i), items);
+				if(error != null) {
+					errors.add(new CartOperationError(i, error));
+				}
+			}
+			return new BatchModifyCartResponse(cart, errors);
+		});
+		if(response.hasBody()) {
+			log.info("Batch of {} cart operations applied for {}, {} skipped", operations.size(),
+					request.getUsername(), response.getBody().getErrors().size());
+		}
+		return response;
+	}
+
+	/**
+	 * Applies one batch operation to the cart, returning why it was skipped or null if it was applied.
+	 */
+	private static String apply(Cart cart, StockReservations stock, CartOperation operation, Map<Long, Item> items) {
+		if(operation == null || operation.getType() == null) {
+			return "Operation type is missing";
+		}
+		Item item = items.get(operation.getItemId());
+		if(item == null) {
+			return "Item with ID " + operation.getItemId() + " not found";
+		}
+		if(operation.getQuantity() < 0) {
+			return "Quantity must not be negative";
+		}
+		int current = cart.getLine(item.getId()) == null ? 0 : cart.getLine(item.getId()).getQuantity();
+		int added = 0;
+		switch(operation.getType()) {
+			case ADD:
+				added = operation.getQuantity();
+				break;
+			case REMOVE:
+				added = -Math.min(current, operation.getQuantity());
+				break;
+			case SET_QUANTITY:
+				added = operation.getQuantity() - current;
+				break;
+		}
+		if(added > 0 && !stock.reserve(item.getId(), added)) {
+			return "Item with ID " + item.getId() + " is out of stock";
+		}
+		if(added > 0) {
+			cart.addItem(item, added);
+		} else if(added < 0) {
+			stock.release(item.getId(), cart.removeItem(item, -added));
+		}
+		return null;
+	}
+
+	/**
+	 * Applies a change through the cart store, which either writes it through (retrying on concurrent updates
+	 * of the same cart) or keeps it in memory until the next flush. Stock the change reserves is handed back if
+	 * it has to run again or fails, and stock it releases is only returned once the change has been applied.
+	 */
+	private <R> ResponseEntity<R> modify(long cartId, BiFunction<Cart, StockReservations, R> change) {
+		StockReservations stock = inventoryService.reservations();
+		boolean applied = false;
+		try {
+			Optional<R> result = cartStore.modify(cartId, cart -> {
+				stock.reset();
+				return change.apply(cart, stock);
+			});
+			if(!result.isPresent()) {
+				return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+			}
+			stock.complete();
+			applied = true;
+			return ResponseEntity.ok(result.get());
+		} catch (OutOfStockException e) {
+			log.error("Not enough of item {} left for cart {}", e.getItemId(), cartId);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		} catch (OptimisticLockingFailureException e) {
+			log.error("Cart {} is being updated concurrently, giving up", cartId);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		} finally {
+			if(!applied) {
+				stock.reset();
+			}
+		}
+	}
+
+	/**
+	 * Whether an If-None-Match header lists the given tag. GET uses the weak comparison, so a W/ prefix
+	 * on the client's copy is ignored.
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) {
+			return false;
+		}
+		for(String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if(candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if(candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the cart id carried in the token when there is one, otherwise looks the user up by name.
+	 * Returns null if the user (or cart) doesn't exist.
+	 */
+	private Long findCartId(String username, JWTPrincipal principal) {
+		if(principal != null && principal.getCartId() != null) {
+			return principal.getCartId();
+		}
+		User user = userRepository.findByUsername(username);
+		return user == null || user.getCart() == null ? null : user.getCart().getId();
 	}
 		
 }
@@ -1,23 +1,43 @@
 package com.example.demo.controllers;
 
+import java.net.URI;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.User;
 import com.example.demo.model.persistence.UserOrder;
-import com.example.demo.model.persistence.repositories.CartRepository;
 import com.example.demo.model.persistence.repositories.OrderRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.responses.OrderHistoryPage;
+import com.example.demo.model.responses.OrderStatusResponse;
+import com.example.demo.model.responses.OrderStatusResponse.Status;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.OrderHistoryService;
+import com.example.demo.service.OrderService;
+import com.example.demo.service.OutOfStockException;
+import com.example.demo.service.QueuedOrder;
+import com.example.demo.service.SubmissionKeyService;
+import com.example.demo.service.SubmittedOrder;
 
 @RestController
 @RequestMapping("/api/order")
@@ -25,28 +45,184 @@ public class OrderController {
 
 	private static final Logger log = LoggerFactory.getLogger(OrderController.class);
 
+	private static final String NDJSON = "application/x-ndjson";
+
+	private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+	private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 64;
+
 	@Autowired
 	private UserRepository userRepository;
 	
 	@Autowired
 	private OrderRepository orderRepository;
+
+	@Autowired
+	private OrderService orderService;
+
+	@Autowired
+	private OrderHistoryService orderHistoryService;
+
+	@Autowired
+	private SubmissionKeyService submissionKeyService;
 	
 	
+	/**
+	 * Places the user's cart as an order. In async submit mode the order is only accepted here, and the response
+	 * is 202 with the order id and where to look up its status. Retries sent with the Idempotency-Key header of
+	 * a submission that succeeded get its order back instead of placing another one.
+	 */
 	@PostMapping("/submit/{username}")
-	public ResponseEntity<UserOrder> submit(@PathVariable String username) {
-		User user = userRepository.findByUsername(username);
+	public ResponseEntity<?> submit(@PathVariable String username,
+			@RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not submit an order for {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		Long cartId = principal != null && principal.getCartId() != null ? principal.getCartId()
+				: userRepository.findCartIdByUsername(username);
+		if(idempotencyKey == null) {
+			return submitCart(username, cartId, null);
+		}
+		if(idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+			log.error("Invalid idempotency key for the order of {}", username);
+			return ResponseEntity.badRequest().build();
+		}
+		User user = findUser(username, principal);
 		if(user == null) {
 			log.error("User {} not found", username);
 			return ResponseEntity.notFound().build();
 		}
-		UserOrder order = UserOrder.createFromCart(user.getCart());
-		orderRepository.save(order);
+		AtomicReference<ResponseEntity<?>> response = new AtomicReference<>();
+		SubmittedOrder order = submissionKeyService.submit(user.getId(), idempotencyKey, submissionKey -> {
+			response.set(submitCart(username, cartId, submissionKey));
+			return submitted(response.get());
+		});
+		if(response.get() != null) {
+			return response.get();
+		}
+		log.info("Order {} returned again for idempotency key {}", order.getOrderId(), idempotencyKey);
+		return replay(username, user.getId(), order);
+	}
+
+	/**
+	 * Places or accepts the order, recording the submission key with the given id along with it if there is one.
+	 */
+	private ResponseEntity<?> submitCart(String username, Long cartId, String submissionKey) {
+		if(orderService.isAsync()) {
+			return enqueue(username, cartId, submissionKey);
+		}
+		Optional<UserOrder> order;
+		try {
+			order = cartId == null ? Optional.empty() : orderService.submit(cartId, submissionKey);
+		} catch (OutOfStockException e) {
+			log.error("Not enough of item {} left to submit the order of {}", e.getItemId(), username);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		} catch (OptimisticLockingFailureException e) {
+			log.error("Cart of {} changed while the order was being submitted", username);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		} catch (IllegalStateException e) {
+			log.error("Cart of {} could not be saved, order not submitted", username);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+		}
+		if(!order.isPresent()) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
 		log.info("Order submitted successfully");
-		return ResponseEntity.ok(order);
+		return ResponseEntity.ok(order.get());
+	}
+
+	/**
+	 * The order a successful submission response is for, or null if the submission failed.
+	 */
+	private static SubmittedOrder submitted(ResponseEntity<?> response) {
+		if(response.getBody() instanceof UserOrder) {
+			return new SubmittedOrder(((UserOrder) response.getBody()).getId(), false);
+		}
+		if(response.getBody() instanceof OrderStatusResponse) {
+			return new SubmittedOrder(((OrderStatusResponse) response.getBody()).getId(), true);
+		}
+		return null;
+	}
+
+	/**
+	 * Answers a repeated submission the way the first one was answered, from the order it placed or queued.
+	 * A queued order is reported with its current status.
+	 */
+	private ResponseEntity<?> replay(String username, long userId, SubmittedOrder order) {
+		if(order.isQueued()) {
+			Status status = orderService.status(order.getOrderId(), userId);
+			return ResponseEntity.accepted()
+					.location(URI.create("/api/order/status/" + username + "/" + order.getOrderId()))
+					.body(new OrderStatusResponse(order.getOrderId(), status));
+		}
+		List<UserOrder> orders = orderRepository.findWithLinesByIdIn(Collections.singletonList(order.getOrderId()));
+		if(orders.isEmpty()) {
+			log.error("Order {} of {} not found", order.getOrderId(), username);
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(orders.get(0));
+	}
+
+	private ResponseEntity<OrderStatusResponse> enqueue(String username, Long cartId, String submissionKey) {
+		Optional<QueuedOrder> order;
+		try {
+			order = cartId == null ? Optional.empty() : orderService.enqueue(cartId, submissionKey);
+		} catch (IllegalStateException e) {
+			log.error("Cart of {} is empty, no order submitted", username);
+			return ResponseEntity.badRequest().build();
+		} catch (RejectedExecutionException e) {
+			log.error("Order queue is full, order of {} not accepted", username);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+		} catch (OptimisticLockingFailureException e) {
+			log.error("Cart of {} changed while the order was being submitted", username);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		if(!order.isPresent()) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
+		long orderId = order.get().getId();
+		log.info("Order {} accepted", orderId);
+		return ResponseEntity.accepted().location(URI.create("/api/order/status/" + username + "/" + orderId))
+				.body(new OrderStatusResponse(orderId, Status.QUEUED));
+	}
+
+	/**
+	 * Returns whether an order submitted asynchronously is still queued, has been placed or has failed.
+	 */
+	@GetMapping("/status/{username}/{orderId}")
+	public ResponseEntity<OrderStatusResponse> getStatus(@PathVariable String username, @PathVariable long orderId,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not view the orders of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		User user = findUser(username, principal);
+		if(user == null) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
+		Status status = orderService.status(orderId, user.getId());
+		if(status == null) {
+			log.error("Order {} of {} not found", orderId, username);
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(new OrderStatusResponse(orderId, status));
 	}
 	
 	@GetMapping("/history/{username}")
-	public ResponseEntity<List<UserOrder>> getOrdersForUser(@PathVariable String username) {
+	public ResponseEntity<List<UserOrder>> getOrdersForUser(@PathVariable String username,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not view the orders of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		if(principal != null && principal.getUserId() != null) {
+			return ResponseEntity.ok(orderRepository.findByUserId(principal.getUserId()));
+		}
 		User user = userRepository.findByUsername(username);
 		if(user == null) {
 			log.error("User {} not found", username);
@@ -54,4 +230,58 @@ public class OrderController {
 		}
 		return ResponseEntity.ok(orderRepository.findByUser(user));
 	}
+
+	/**
+	 * Returns one page of a user's orders, oldest first, starting after the order id given as the cursor. The
+	 * response carries the cursor for the next page.
+	 */
+	@GetMapping("/history/{username}/page")
+	public ResponseEntity<OrderHistoryPage> getOrderPage(@PathVariable String username,
+			@RequestParam(value = "after", defaultValue = "0") long after,
+			@RequestParam(value = "size", required = false) Integer size,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not view the orders of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		User user = findUser(username, principal);
+		if(user == null) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(orderHistoryService.page(user.getId(), after, size));
+	}
+
+	/**
+	 * Streams all of a user's orders as newline delimited JSON, one order per line, oldest first.
+	 */
+	@GetMapping(value = "/history/{username}/stream", produces = NDJSON)
+	public ResponseEntity<StreamingResponseBody> streamOrders(@PathVariable String username,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not view the orders of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		User user = findUser(username, principal);
+		if(user == null) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON))
+				.body(out -> orderHistoryService.stream(user, out));
+	}
+
+	/**
+	 * Takes the user from the token when it carries the id, so only the name and id are set, otherwise looks the
+	 * user up by name. Returns null if the user doesn't exist.
+	 */
+	private User findUser(String username, JWTPrincipal principal) {
+		if(principal != null && principal.getUserId() != null) {
+			User user = new User();
+			user.setId(principal.getUserId());
+			user.setUsername(principal.getName());
+			return user;
+		}
+		return userRepository.findByUsername(username);
+	}
 }
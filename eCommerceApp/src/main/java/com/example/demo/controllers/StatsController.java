@@ -0,0 +1,75 @@
+package com.example.demo.controllers;
+
+import java.time.LocalDate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.example.demo.model.persistence.User;
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.responses.OrderStatsResponse;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.OrderStatsService;
+
+/**
+ * Order totals per user, per item and per day, answered from in-memory counters.
+ */
+@RestController
+@RequestMapping("/api/stats")
+public class StatsController {
+
+	private static final Logger log = LoggerFactory.getLogger(StatsController.class);
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private OrderStatsService orderStatsService;
+
+	/**
+	 * The user's orders, units ordered and lifetime spend.
+	 */
+	@GetMapping("/user/{username}")
+	public ResponseEntity<OrderStatsResponse> getUserStats(@PathVariable String username,
+			@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal != null && !principal.isUser(username)) {
+			log.error("User {} may not view the order stats of {}", principal.getName(), username);
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		if(principal != null && principal.getUserId() != null) {
+			return ResponseEntity.ok(orderStatsService.user(principal.getUserId()));
+		}
+		User user = userRepository.findByUsername(username);
+		if(user == null) {
+			log.error("User {} not found", username);
+			return ResponseEntity.notFound().build();
+		}
+		return ResponseEntity.ok(orderStatsService.user(user.getId()));
+	}
+
+	/**
+	 * Orders that held the item, units of it sold and the revenue from them.
+	 */
+	@GetMapping("/item/{itemId}")
+	public ResponseEntity<OrderStatsResponse> getItemStats(@PathVariable long itemId) {
+		return ResponseEntity.ok(orderStatsService.item(itemId));
+	}
+
+	/**
+	 * Orders placed on the day (yyyy-MM-dd, server time zone), the units they held and their revenue.
+	 */
+	@GetMapping("/day/{day}")
+	public ResponseEntity<OrderStatsResponse> getDailyStats(
+			@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate day) {
+		return ResponseEntity.ok(orderStatsService.day(day));
+	}
+}
@@ -1,13 +1,18 @@
 package com.example.demo.controllers;
 
-import java.util.Optional;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -17,9 +22,14 @@ import org.springframework.web.bind.annotation.RestController;
 
 import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.User;
-import com.example.demo.model.persistence.repositories.CartRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
 import com.example.demo.model.requests.CreateUserRequest;
+import com.example.demo.model.responses.BulkCreateUserResponse;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.security.PasswordHashingRejectedException;
+import com.example.demo.security.TokenRevocationService;
+import com.example.demo.service.UserProvisioningService;
+import com.example.demo.service.UsernameIndex;
 
 @RestController
 @RequestMapping("/api/user")
@@ -31,10 +41,19 @@ public class UserController {
 	private UserRepository userRepository;
 	
 	@Autowired
-	private CartRepository cartRepository;
+	private UsernameIndex usernameIndex;
 
 	@Autowired
-	private BCryptPasswordEncoder bCryptPasswordEncoder;
+	private PasswordEncoder passwordEncoder;
+
+	@Autowired
+	private UserCache userCache;
+
+	@Autowired
+	private TokenRevocationService tokenRevocationService;
+
+	@Autowired
+	private UserProvisioningService userProvisioningService;
 
 	@GetMapping("/id/{id}")
 	public ResponseEntity<User> findById(@PathVariable Long id) {
@@ -49,23 +68,84 @@ public class UserController {
 	
 	@PostMapping("/create")
 	public ResponseEntity<User> createUser(@RequestBody CreateUserRequest createUserRequest) {
-		User user = new User();
-		user.setUsername(createUserRequest.getUsername());
-		Cart cart = new Cart();
-		cartRepository.save(cart);
-		user.setCart(cart);
+		String username = createUserRequest.getUsername();
+		if (username == null || username.trim().isEmpty()) {
+			log.error("Username missing, failed to create user");
+			return ResponseEntity.badRequest().build();
+		}
 		// Check that the submitted password isn't less than 7 characters and matches the confirm password
-		if (createUserRequest.getPassword().length() < 7
-			|| !createUserRequest.getPassword().equals(createUserRequest.getConfirmPassword())) {
-			log.error("Password error, failed to create user {}", createUserRequest.getUsername());
-			log.debug("Submitted password character length is: {}", createUserRequest.getPassword().length());
+		if (!createUserRequest.hasValidPassword()) {
+			log.error("Password error, failed to create user {}", username);
+			log.debug("Submitted password character length is: {}",
+					createUserRequest.getPassword() == null ? 0 : createUserRequest.getPassword().length());
 			return ResponseEntity.badRequest().build();
 		}
+		// Only names the index can't rule out cost a lookup, and either way nothing is hashed for a taken name
+		if (usernameIndex.mightExist(username) && userRepository.existsByUsername(username)) {
+			log.error("Username {} is taken, failed to create user", username);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		User user = new User();
+		user.setUsername(username);
 		// Set user password to an encoded version of the submitted password
-		user.setPassword(bCryptPasswordEncoder.encode(createUserRequest.getPassword()));
-		userRepository.save(user);
-		log.info("User {} has been created.", createUserRequest.getUsername());
+		try {
+			user.setPassword(passwordEncoder.encode(createUserRequest.getPassword()));
+		} catch (PasswordHashingRejectedException e) {
+			log.warn("Password hashing pool saturated, failed to create user {}", username);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+					.build();
+		}
+		// The cart is persisted along with the user, so a rejected signup leaves no orphan cart behind
+		user.setCart(new Cart());
+		try {
+			userRepository.save(user);
+		} catch (DataIntegrityViolationException e) {
+			// Lost a race with a concurrent signup for the same name; the unique constraint has the final word
+			log.error("Username {} is taken, failed to create user", username);
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		usernameIndex.add(username);
+		userCache.removeUserFromCache(username);
+		log.info("User {} has been created.", username);
 		return ResponseEntity.ok(user);
 	}
 
+	/**
+	 * Creates many users at once from a JSON array (or newline delimited stream) of create requests,
+	 * returning the outcome of every row. Only available when provisioning is enabled.
+	 */
+	@PostMapping("/bulkCreate")
+	public ResponseEntity<BulkCreateUserResponse> bulkCreate(InputStream body) {
+		if(!userProvisioningService.isEnabled()) {
+			return ResponseEntity.notFound().build();
+		}
+		try {
+			return ResponseEntity.ok(userProvisioningService.provision(body));
+		} catch (IllegalArgumentException e) {
+			log.error("Bulk user creation rejected: {}", e.getMessage());
+			return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+		} catch (IOException e) {
+			log.error("Bulk user creation request could not be parsed", e);
+			return ResponseEntity.badRequest().build();
+		}
+	}
+
+	/**
+	 * Revokes the bearer token the request was made with, so it stops working before it expires.
+	 */
+	@PostMapping("/logout")
+	public ResponseEntity<Void> logout(@AuthenticationPrincipal JWTPrincipal principal) {
+		if(principal == null) {
+			return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+		}
+		if(principal.getTokenId() == null) {
+			log.error("Token for user {} has no id and cannot be revoked", principal.getName());
+			return ResponseEntity.badRequest().build();
+		}
+		tokenRevocationService.revoke(principal.getTokenId(), principal.getExpiresAt());
+		log.info("User {} has logged out.", principal.getName());
+		return ResponseEntity.noContent().build();
+	}
+
 }
@@ -1,26 +1,46 @@
 package com.example.demo.model.persistence;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
+import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
-import javax.persistence.ManyToMany;
+import javax.persistence.Index;
+import javax.persistence.MapKeyColumn;
+import javax.persistence.NamedAttributeNode;
+import javax.persistence.NamedEntityGraph;
+import javax.persistence.NamedSubgraph;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 @Entity
-@Table(name = "cart")
+@Table(name = "cart", indexes = @Index(name = "idx_cart_last_modified", columnList = "last_modified, id"))
+@NamedEntityGraph(name = Cart.WITH_LINES,
+		attributeNodes = {@NamedAttributeNode(value = "lines", subgraph = "line"), @NamedAttributeNode("user")},
+		subgraphs = @NamedSubgraph(name = "line", attributeNodes = @NamedAttributeNode("item")))
 public class Cart {
+
+	/**
+	 * Entity graph that loads a cart together with its lines, their items and its user in one query.
+	 */
+	public static final String WITH_LINES = "Cart.withLines";
 	
 	@Id
 	@GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -28,10 +48,11 @@ public class Cart {
 	@Column
 	private Long id;
 	
-	@ManyToMany
+	// One line per distinct item, keyed by item id, so quantity changes are single map lookups
+	@OneToMany(mappedBy = "cart", cascade = CascadeType.ALL, orphanRemoval = true)
+	@MapKeyColumn(name = "item_id", insertable = false, updatable = false)
 	@JsonProperty
-	@Column
-    private List<Item> items;
+	private Map<Long, CartLine> lines = new LinkedHashMap<>();
 	
 	@OneToOne(mappedBy = "cart")
 	@JsonProperty
@@ -39,13 +60,25 @@ public class Cart {
 	
 	@Column
 	@JsonProperty
-	private BigDecimal total;
+	private Money total;
+
+	// Bumped on every update so concurrent read-modify-writes of the same cart can't overwrite each other
+	@Version
+	@Column(nullable = false)
+	@JsonIgnore
+	private long version;
+
+	// Set whenever the row is written, so carts nobody has touched for a while can be found and emptied
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "last_modified")
+	@JsonIgnore
+	private Date lastModified;
 	
-	public BigDecimal getTotal() {
+	public Money getTotal() {
 		return total;
 	}
 
-	public void setTotal(BigDecimal total) {
+	public void setTotal(Money total) {
 		this.total = total;
 	}
 
@@ -57,6 +90,24 @@ public class Cart {
 		this.user = user;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public Date getLastModified() {
+		return lastModified;
+	}
+
+	@PrePersist
+	@PreUpdate
+	void touch() {
+		lastModified = new Date();
+	}
+
 	public Long getId() {
 		return id;
 	}
@@ -65,33 +116,127 @@ public class Cart {
 		this.id = id;
 	}
 
-	public List<Item> getItems() {
-		return items;
+	public Map<Long, CartLine> getLines() {
+		return Collections.unmodifiableMap(lines);
 	}
 
-	public void setItems(List<Item> items) {
-		this.items = items;
+	public CartLine getLine(Long itemId) {
+		return lines.get(itemId);
+	}
+
+	/**
+	 * Every unit in the cart as its own entry, the shape carts had before they were stored as lines.
+	 */
+	@JsonProperty("items")
+	public List<Item> getItems() {
+		List<Item> items = new ArrayList<>();
+		for (CartLine line : lines.values()) {
+			for (int i = 0; i < line.getQuantity(); i++) {
+				items.add(line.getItem());
+			}
+		}
+		return Collections.unmodifiableList(items);
 	}
 	
 	public void addItem(Item item) {
-		if(items == null) {
-			items = new ArrayList<>();
+		addItem(item, 1);
+	}
+
+	/**
+	 * Adds units of an item, repricing units already in the cart if the item's price has changed since.
+	 */
+	public void addItem(Item item, int quantity) {
+		if(quantity <= 0) {
+			return;
 		}
-		items.add(item);
 		if(total == null) {
-			total = new BigDecimal(0);
+			total = Money.ZERO;
+		}
+		CartLine line = lines.get(item.getId());
+		if(line == null) {
+			line = new CartLine(this, item);
+			lines.put(item.getId(), line);
+		} else if(!line.getUnitPrice().equals(item.getPrice())) {
+			total = total.minus(line.getSubtotal());
+			line.setUnitPrice(item.getPrice());
+			total = total.plus(line.getSubtotal());
 		}
-		total = total.add(item.getPrice());
+		line.setQuantity(line.getQuantity() + quantity);
+		total = total.plus(item.getPrice().times(quantity));
 	}
 	
 	public void removeItem(Item item) {
-		if(items == null) {
-			items = new ArrayList<>();
+		removeItem(item, 1);
+	}
+
+	/**
+	 * Removes up to the given number of units of an item, returning how many were removed. Items that aren't in
+	 * the cart are ignored.
+	 */
+	public int removeItem(Item item, int quantity) {
+		CartLine line = lines.get(item.getId());
+		if(line == null || quantity <= 0) {
+			return 0;
 		}
-		items.remove(item);
-		if(total == null) {
-			total = new BigDecimal(0);
+		int removed = Math.min(quantity, line.getQuantity());
+		total = total.minus(line.getUnitPrice().times(removed));
+		if(removed == line.getQuantity()) {
+			lines.remove(item.getId());
+		} else {
+			line.setQuantity(line.getQuantity() - removed);
+		}
+		return removed;
+	}
+
+	/**
+	 * Moves the line for an item to the item's current price and adjusts the total, returning whether the price
+	 * had changed. Items that aren't in the cart are ignored.
+	 */
+	public boolean reprice(Item item) {
+		CartLine line = lines.get(item.getId());
+		if(line == null || line.getUnitPrice().equals(item.getPrice())) {
+			return false;
+		}
+		total = total.minus(line.getSubtotal());
+		line.reprice(item);
+		total = total.plus(line.getSubtotal());
+		return true;
+	}
+
+	/**
+	 * Removes every line, e.g. once the cart has been turned into an order.
+	 */
+	public void clear() {
+		lines.clear();
+		total = Money.ZERO;
+	}
+
+	/**
+	 * Sets the number of units of an item in the cart, removing its line when the quantity is zero.
+	 */
+	public void setQuantity(Item item, int quantity) {
+		CartLine line = lines.get(item.getId());
+		int current = line == null ? 0 : line.getQuantity();
+		if(quantity > current) {
+			addItem(item, quantity - current);
+		} else {
+			removeItem(item, current - quantity);
+		}
+	}
+
+	/**
+	 * Detached copy of this cart with its own lines, sharing the (immutable) items and user.
+	 */
+	public Cart copy() {
+		Cart copy = new Cart();
+		copy.id = id;
+		copy.user = user;
+		copy.total = total;
+		copy.version = version;
+		copy.lastModified = lastModified;
+		for (Map.Entry<Long, CartLine> line : lines.entrySet()) {
+			copy.lines.put(line.getKey(), line.getValue().copyFor(copy));
 		}
-		total = total.subtract(item.getPrice());
+		return copy;
 	}
 }
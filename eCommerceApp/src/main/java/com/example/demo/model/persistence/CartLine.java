@@ -0,0 +1,113 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One row per distinct item in a cart, holding how many units of it the cart contains and the unit price
+ * the cart total was computed with.
+ */
+@Entity
+@Table(name = "cart_line",
+		uniqueConstraints = @UniqueConstraint(columnNames = {"cart_id", "item_id"}),
+		indexes = @Index(name = "idx_cart_line_item", columnList = "item_id, cart_id"))
+public class CartLine {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@JsonIgnore
+	private Long id;
+
+	@ManyToOne(optional = false)
+	@JoinColumn(name = "cart_id", nullable = false)
+	@JsonIgnore
+	private Cart cart;
+
+	@ManyToOne(optional = false)
+	@JoinColumn(name = "item_id", nullable = false)
+	@JsonProperty
+	private Item item;
+
+	@Column(nullable = false)
+	@JsonProperty
+	private int quantity;
+
+	@Column(nullable = false)
+	@JsonProperty
+	private Money unitPrice;
+
+	protected CartLine() {
+	}
+
+	public CartLine(Cart cart, Item item) {
+		this.cart = cart;
+		this.item = item;
+		this.unitPrice = item.getPrice();
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public Cart getCart() {
+		return cart;
+	}
+
+	public Item getItem() {
+		return item;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public void setQuantity(int quantity) {
+		this.quantity = quantity;
+	}
+
+	public Money getUnitPrice() {
+		return unitPrice;
+	}
+
+	public void setUnitPrice(Money unitPrice) {
+		this.unitPrice = unitPrice;
+	}
+
+	/**
+	 * Price of all units on this line.
+	 */
+	public Money getSubtotal() {
+		return unitPrice.times(quantity);
+	}
+
+	/**
+	 * Switches the line to the current state of its item, including its price.
+	 */
+	void reprice(Item item) {
+		this.item = item;
+		this.unitPrice = item.getPrice();
+	}
+
+	CartLine copyFor(Cart cart) {
+		CartLine copy = new CartLine(cart, item);
+		copy.id = id;
+		copy.quantity = quantity;
+		copy.unitPrice = unitPrice;
+		return copy;
+	}
+}
@@ -0,0 +1,31 @@
+package com.example.demo.model.persistence;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Orders placed on a day, in the server's time zone.
+ */
+@Entity
+@Table(name = "daily_order_stats")
+public class DailyOrderStats extends OrderTotals {
+
+	@Id
+	@Temporal(TemporalType.DATE)
+	@Column(name = "order_date")
+	private Date orderDate;
+
+	public Date getOrderDate() {
+		return orderDate;
+	}
+
+	public void setOrderDate(Date orderDate) {
+		this.orderDate = orderDate;
+	}
+}
@@ -1,21 +1,26 @@
 package com.example.demo.model.persistence;
 
-import java.math.BigDecimal;
+import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 @Entity
-@Table(name = "item")
+@Table(name = "item", indexes = @Index(name = "idx_item_last_modified", columnList = "last_modified, id"))
 public class Item {
 
 	@Id
@@ -29,11 +34,17 @@ public class Item {
 	
 	@Column(nullable = false)
 	@JsonProperty
-	private BigDecimal price;
+	private Money price;
 	
 	@Column(nullable = false)
 	@JsonProperty
 	private String description;
+
+	// Set whenever the row is written, so price changes can be found without reading the whole table
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "last_modified")
+	@JsonIgnore
+	private Date lastModified;
 	
 	@Override
 	public int hashCode() {
@@ -76,11 +87,11 @@ public class Item {
 		this.name = name;
 	}
 
-	public BigDecimal getPrice() {
+	public Money getPrice() {
 		return price;
 	}
 
-	public void setPrice(BigDecimal price) {
+	public void setPrice(Money price) {
 		this.price = price;
 	}
 
@@ -91,6 +102,16 @@ public class Item {
 	public void setDescription(String description) {
 		this.description = description;
 	}
+
+	public Date getLastModified() {
+		return lastModified;
+	}
+
+	@PrePersist
+	@PreUpdate
+	void touch() {
+		lastModified = new Date();
+	}
 	
 	
 	
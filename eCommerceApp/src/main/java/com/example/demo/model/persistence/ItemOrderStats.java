@@ -0,0 +1,26 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Orders that held an item, the units of it sold and the revenue at the prices it was ordered at.
+ */
+@Entity
+@Table(name = "item_order_stats")
+public class ItemOrderStats extends OrderTotals {
+
+	@Id
+	@Column(name = "item_id")
+	private Long itemId;
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public void setItemId(Long itemId) {
+		this.itemId = itemId;
+	}
+}
@@ -0,0 +1,46 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Units of an item left to sell, not counting those in orders already placed. Items without a row aren't
+ * stock-managed and can always be added to a cart.
+ */
+@Entity
+@Table(name = "item_stock")
+public class ItemStock {
+
+	@Id
+	@Column(name = "item_id")
+	private Long itemId;
+
+	@Column(nullable = false)
+	private long quantity;
+
+	public ItemStock() {
+	}
+
+	public ItemStock(Long itemId, long quantity) {
+		this.itemId = itemId;
+		this.quantity = quantity;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public void setItemId(Long itemId) {
+		this.itemId = itemId;
+	}
+
+	public long getQuantity() {
+		return quantity;
+	}
+
+	public void setQuantity(long quantity) {
+		this.quantity = quantity;
+	}
+}
@@ -0,0 +1,126 @@
+package com.example.demo.model.persistence;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+import java.util.Objects;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+
+/**
+ * Immutable amount of money held as a whole number of minor units (cents for USD) in a given currency.
+ * Arithmetic is exact and fails with an {@link ArithmeticException} on overflow instead of wrapping, and
+ * amounts in different currencies can't be combined. Serialized to JSON as a plain decimal number.
+ */
+public final class Money implements Comparable<Money>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final Currency DEFAULT_CURRENCY = Currency.getInstance("USD");
+
+	public static final Money ZERO = new Money(0, DEFAULT_CURRENCY);
+
+	private final long minorUnits;
+	private final Currency currency;
+
+	private Money(long minorUnits, Currency currency) {
+		this.minorUnits = minorUnits;
+		this.currency = Objects.requireNonNull(currency, "currency");
+	}
+
+	public static Money ofMinor(long minorUnits) {
+		return ofMinor(minorUnits, DEFAULT_CURRENCY);
+	}
+
+	public static Money ofMinor(long minorUnits, Currency currency) {
+		return minorUnits == 0 && DEFAULT_CURRENCY.equals(currency) ? ZERO : new Money(minorUnits, currency);
+	}
+
+	/**
+	 * Converts a decimal amount in the default currency.
+	 *
+	 * @throws ArithmeticException if the amount has more decimals than the currency or doesn't fit a long
+	 */
+	@JsonCreator
+	public static Money of(BigDecimal amount) {
+		return of(amount, DEFAULT_CURRENCY);
+	}
+
+	public static Money of(BigDecimal amount, Currency currency) {
+		return ofMinor(amount.setScale(fractionDigits(currency), RoundingMode.UNNECESSARY)
+				.unscaledValue().longValueExact(), currency);
+	}
+
+	public long getMinorUnits() {
+		return minorUnits;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public Money plus(Money other) {
+		checkCurrency(other);
+		return ofMinor(Math.addExact(minorUnits, other.minorUnits), currency);
+	}
+
+	public Money minus(Money other) {
+		checkCurrency(other);
+		return ofMinor(Math.subtractExact(minorUnits, other.minorUnits), currency);
+	}
+
+	public Money times(long factor) {
+		return ofMinor(Math.multiplyExact(minorUnits, factor), currency);
+	}
+
+	public boolean isZero() {
+		return minorUnits == 0;
+	}
+
+	public boolean isNegative() {
+		return minorUnits < 0;
+	}
+
+	@JsonValue
+	public BigDecimal toBigDecimal() {
+		return BigDecimal.valueOf(minorUnits, fractionDigits(currency));
+	}
+
+	@Override
+	public int compareTo(Money other) {
+		checkCurrency(other);
+		return Long.compare(minorUnits, other.minorUnits);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Money))
+			return false;
+		Money other = (Money) obj;
+		return minorUnits == other.minorUnits && currency.equals(other.currency);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Long.hashCode(minorUnits) + currency.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return currency.getCurrencyCode() + " " + toBigDecimal().toPlainString();
+	}
+
+	private void checkCurrency(Money other) {
+		if (!currency.equals(other.currency)) {
+			throw new IllegalArgumentException("Cannot combine " + currency + " with " + other.currency);
+		}
+	}
+
+	private static int fractionDigits(Currency currency) {
+		return Math.max(0, currency.getDefaultFractionDigits());
+	}
+}
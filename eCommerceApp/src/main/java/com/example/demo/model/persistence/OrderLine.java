@@ -0,0 +1,71 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One distinct item of a placed order: its id, its name and unit price as they were when the order was placed,
+ * and how many units were ordered. Lines never change once the order is placed, so they keep showing what was
+ * bought and paid whatever happens to the item afterwards.
+ */
+@Embeddable
+public class OrderLine {
+
+	@Column(name = "item_id", nullable = false)
+	@JsonProperty
+	private long itemId;
+
+	@Column(nullable = false)
+	@JsonProperty
+	private String name;
+
+	@Column(name = "unit_price", nullable = false)
+	@JsonProperty
+	private Money unitPrice;
+
+	@Column(nullable = false)
+	@JsonProperty
+	private int quantity;
+
+	protected OrderLine() {
+	}
+
+	public OrderLine(long itemId, String name, Money unitPrice, int quantity) {
+		this.itemId = itemId;
+		this.name = name;
+		this.unitPrice = unitPrice;
+		this.quantity = quantity;
+	}
+
+	/**
+	 * Snapshot of a cart line at the price the cart holds it at.
+	 */
+	public static OrderLine of(CartLine line) {
+		return new OrderLine(line.getItem().getId(), line.getItem().getName(), line.getUnitPrice(), line.getQuantity());
+	}
+
+	public long getItemId() {
+		return itemId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Money getUnitPrice() {
+		return unitPrice;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	/**
+	 * Price of all units on this line.
+	 */
+	public Money getSubtotal() {
+		return unitPrice.times(quantity);
+	}
+}
@@ -0,0 +1,45 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.MappedSuperclass;
+
+/**
+ * Running totals over placed orders: how many orders, how many units they held and what they came to. The
+ * stats tables are only ever added to, in the transaction that writes the orders.
+ */
+@MappedSuperclass
+public abstract class OrderTotals {
+
+	@Column(nullable = false)
+	private long orders;
+
+	@Column(nullable = false)
+	private long units;
+
+	@Column(nullable = false)
+	private Money total;
+
+	public long getOrders() {
+		return orders;
+	}
+
+	public void setOrders(long orders) {
+		this.orders = orders;
+	}
+
+	public long getUnits() {
+		return units;
+	}
+
+	public void setUnits(long units) {
+		this.units = units;
+	}
+
+	public Money getTotal() {
+		return total;
+	}
+
+	public void setTotal(Money total) {
+		this.total = total;
+	}
+}
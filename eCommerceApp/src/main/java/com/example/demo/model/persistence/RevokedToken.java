@@ -0,0 +1,52 @@
+package com.example.demo.model.persistence;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A token id (jti claim) revoked before its natural expiry. Rows are only needed until the token would
+ * have expired anyway.
+ */
+@Entity
+@Table(name = "revoked_token", indexes = @Index(name = "idx_revoked_token_expires_at", columnList = "expires_at"))
+public class RevokedToken {
+
+	@Id
+	@Column(name = "token_id", length = 64)
+	private String tokenId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "expires_at", nullable = false)
+	private Date expiresAt;
+
+	public RevokedToken() {
+	}
+
+	public RevokedToken(String tokenId, Date expiresAt) {
+		this.tokenId = tokenId;
+		this.expiresAt = expiresAt;
+	}
+
+	public String getTokenId() {
+		return tokenId;
+	}
+
+	public void setTokenId(String tokenId) {
+		this.tokenId = tokenId;
+	}
+
+	public Date getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(Date expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+}
@@ -0,0 +1,78 @@
+package com.example.demo.model.persistence;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The order an Idempotency-Key of a user was first answered with. Only the order's id is kept, not the
+ * response: orders don't change once placed, so the response can be rebuilt from it. Rows are only needed
+ * until clients stop retrying.
+ */
+@Entity
+@Table(name = "submission_key", indexes = @Index(name = "idx_submission_key_expires_at", columnList = "expires_at"))
+public class SubmissionKey {
+
+	// User id and the client's key, so keys of different users never meet
+	@Id
+	@Column(name = "id", length = 96)
+	private String id;
+
+	@Column(name = "order_id", nullable = false)
+	private long orderId;
+
+	@Column(name = "queued", nullable = false)
+	private boolean queued;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "expires_at", nullable = false)
+	private Date expiresAt;
+
+	public SubmissionKey() {
+	}
+
+	public SubmissionKey(String id, long orderId, boolean queued, Date expiresAt) {
+		this.id = id;
+		this.orderId = orderId;
+		this.queued = queued;
+		this.expiresAt = expiresAt;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public long getOrderId() {
+		return orderId;
+	}
+
+	public void setOrderId(long orderId) {
+		this.orderId = orderId;
+	}
+
+	public boolean isQueued() {
+		return queued;
+	}
+
+	public void setQueued(boolean queued) {
+		this.queued = queued;
+	}
+
+	public Date getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(Date expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+}
@@ -1,37 +1,44 @@
 package com.example.demo.model.persistence;
 
-import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
-import javax.persistence.CascadeType;
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
-import javax.persistence.JoinTable;
-import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 @Entity
-@Table(name = "user_order")
+@Table(name = "user_order", indexes = @Index(name = "idx_user_order_user", columnList = "user_id, id"))
 public class UserOrder {
 
+	// Ids come from a sequence in blocks of 50 held in memory, so an order needs no identity round trip and a
+	// queued order can be given its id before it is written
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_order_seq")
+	@SequenceGenerator(name = "user_order_seq", sequenceName = "user_order_seq", allocationSize = 50)
 	@JsonProperty
 	@Column
 	private Long id;
 	
-	@ManyToMany(cascade = CascadeType.ALL)
+	// One row per distinct item, holding what the item was called and cost when ordered. Nothing is written to
+	// the item table when an order is saved
+	@ElementCollection
+	@CollectionTable(name = "user_order_line", joinColumns = @JoinColumn(name = "order_id"),
+			indexes = @Index(name = "idx_user_order_line_order", columnList = "order_id"))
 	@JsonProperty
-	@Column
-    private List<Item> items;
+	private List<OrderLine> lines = new ArrayList<>();
 	
 	@ManyToOne
 	@JoinColumn(name="user_id", nullable = false, referencedColumnName = "id")
@@ -40,7 +47,7 @@ public class UserOrder {
 	
 	@JsonProperty
 	@Column
-	private BigDecimal total;
+	private Money total;
 
 	public Long getId() {
 		return id;
@@ -50,12 +57,31 @@ public class UserOrder {
 		this.id = id;
 	}
 
-	public List<Item> getItems() {
-		return items;
+	public List<OrderLine> getLines() {
+		return Collections.unmodifiableList(lines);
 	}
 
-	public void setItems(List<Item> items) {
-		this.items = items;
+	public void setLines(List<OrderLine> lines) {
+		this.lines = lines;
+	}
+
+	/**
+	 * Every unit in the order as its own item, named and priced as ordered, the shape orders had before they were
+	 * stored as lines.
+	 */
+	@JsonProperty("items")
+	public List<Item> getItems() {
+		List<Item> items = new ArrayList<>();
+		for (OrderLine line : lines) {
+			Item item = new Item();
+			item.setId(line.getItemId());
+			item.setName(line.getName());
+			item.setPrice(line.getUnitPrice());
+			for (int i = 0; i < line.getQuantity(); i++) {
+				items.add(item);
+			}
+		}
+		return Collections.unmodifiableList(items);
 	}
 
 	public User getUser() {
@@ -66,18 +92,25 @@ public class UserOrder {
 		this.user = user;
 	}
 	
-	public BigDecimal getTotal() {
+	public Money getTotal() {
 		return total;
 	}
 
-	public void setTotal(BigDecimal total) {
+	public void setTotal(Money total) {
 		this.total = total;
 	}
 
 	public static UserOrder createFromCart(Cart cart) {
 		UserOrder order = new UserOrder();
-		order.setItems(cart.getItems().stream().collect(Collectors.toList()));
-		order.setTotal(cart.getTotal());
+		List<OrderLine> lines = new ArrayList<>(cart.getLines().size());
+		Money total = Money.ZERO;
+		for (CartLine line : cart.getLines().values()) {
+			OrderLine orderLine = OrderLine.of(line);
+			lines.add(orderLine);
+			total = total.plus(orderLine.getSubtotal());
+		}
+		order.setLines(lines);
+		order.setTotal(total);
 		order.setUser(cart.getUser());
 		return order;
 	}
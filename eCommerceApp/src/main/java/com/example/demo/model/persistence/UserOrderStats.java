@@ -0,0 +1,26 @@
+package com.example.demo.model.persistence;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * A user's orders over their lifetime, the total being their lifetime spend.
+ */
+@Entity
+@Table(name = "user_order_stats")
+public class UserOrderStats extends OrderTotals {
+
+	@Id
+	@Column(name = "user_id")
+	private Long userId;
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+}
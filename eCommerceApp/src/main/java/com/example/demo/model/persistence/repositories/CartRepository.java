@@ -1,10 +1,21 @@
 package com.example.demo.model.persistence.repositories;
 
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.User;
 
 public interface CartRepository extends JpaRepository<Cart, Long> {
 	Cart findByUser(User user);
+
+	@EntityGraph(Cart.WITH_LINES)
+	Optional<Cart> findWithLinesById(Long id);
+
+	@Query("select c.version from Cart c where c.id = :id")
+	Long findVersionById(@Param("id") Long id);
 }
@@ -1,12 +1,41 @@
 package com.example.demo.model.persistence.repositories;
 
+import java.util.Collection;
 import java.util.List;
 
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
 import com.example.demo.model.persistence.User;
 import com.example.demo.model.persistence.UserOrder;
 
 public interface OrderRepository extends JpaRepository<UserOrder, Long> {
-	List<UserOrder> findByUser(User user);
+	// Lines are fetched in the same query rather than per order. Distinct only drops the repeated order rows
+	// in memory; every joined row is already distinct, so passing it on to SQL would only cost a sort
+	@EntityGraph(attributePaths = {"lines", "user"})
+	@Query("select distinct o from UserOrder o where o.user = :user")
+	@QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+	List<UserOrder> findByUser(@Param("user") User user);
+
+	@EntityGraph(attributePaths = {"lines", "user"})
+	@Query("select distinct o from UserOrder o where o.user.id = :userId")
+	@QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+	List<UserOrder> findByUserId(@Param("userId") long userId);
+
+	// Keyset page of a user's order ids: the page is cut in SQL, which a fetch joined collection would prevent
+	@Query("select o.id from UserOrder o where o.user.id = :userId and o.id > :after order by o.id")
+	List<Long> findIdsByUserIdAfter(@Param("userId") long userId, @Param("after") long after, Pageable pageable);
+
+	@EntityGraph(attributePaths = {"lines", "user"})
+	@Query("select distinct o from UserOrder o where o.id in :ids order by o.id")
+	@QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+	List<UserOrder> findWithLinesByIdIn(@Param("ids") Collection<Long> ids);
+
+	boolean existsByIdAndUserId(long id, long userId);
 }
@@ -0,0 +1,23 @@
+package com.example.demo.model.persistence.repositories;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.example.demo.model.persistence.RevokedToken;
+
+public interface RevokedTokenRepository extends JpaRepository<RevokedToken, String> {
+
+	@Query("select r.tokenId from RevokedToken r")
+	List<String> findAllTokenIds();
+
+	@Transactional
+	@Modifying
+	@Query("delete from RevokedToken r where r.expiresAt < :now")
+	int deleteExpired(@Param("now") Date now);
+}
@@ -0,0 +1,19 @@
+package com.example.demo.model.persistence.repositories;
+
+import java.util.Date;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.example.demo.model.persistence.SubmissionKey;
+
+public interface SubmissionKeyRepository extends JpaRepository<SubmissionKey, String> {
+
+	@Transactional
+	@Modifying
+	@Query("delete from SubmissionKey k where k.expiresAt < :now")
+	int deleteExpired(@Param("now") Date now);
+}
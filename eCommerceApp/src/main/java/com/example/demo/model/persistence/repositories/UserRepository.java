@@ -1,9 +1,24 @@
 package com.example.demo.model.persistence.repositories;
 
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import com.example.demo.model.persistence.User;
 
 public interface UserRepository extends JpaRepository<User, Long> {
+	@EntityGraph(attributePaths = "cart")
 	User findByUsername(String username);
+
+	boolean existsByUsername(String username);
+
+	@Query("select u.cart.id from User u where u.username = :username")
+	Long findCartIdByUsername(@Param("username") String username);
+
+	@Query("select u.username from User u where u.username in :usernames")
+	List<String> findExistingUsernames(@Param("usernames") Collection<String> usernames);
 }
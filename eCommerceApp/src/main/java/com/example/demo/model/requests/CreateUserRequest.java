@@ -36,4 +36,11 @@ public class CreateUserRequest {
 	public void setUsername(String username) {
 		this.username = username;
 	}
+
+	/**
+	 * Whether the password is at least 7 characters long and matches the confirm password.
+	 */
+	public boolean hasValidPassword() {
+		return password != null && password.length() >= 7 && password.equals(confirmPassword);
+	}
 }
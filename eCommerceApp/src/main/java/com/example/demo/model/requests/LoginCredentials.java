@@ -0,0 +1,32 @@
+package com.example.demo.model.requests;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Body of a login request. Immutable, and deliberately not the User entity, so parsing a login doesn't
+ * instantiate a managed JPA class just to read two strings.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public final class LoginCredentials {
+
+	private final String username;
+
+	private final String password;
+
+	@JsonCreator
+	public LoginCredentials(@JsonProperty("username") String username,
+			@JsonProperty("password") String password) {
+		this.username = username;
+		this.password = password;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+}
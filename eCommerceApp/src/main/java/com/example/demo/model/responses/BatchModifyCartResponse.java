@@ -0,0 +1,28 @@
+package com.example.demo.model.responses;
+
+import java.util.List;
+
+import com.example.demo.model.persistence.Cart;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class BatchModifyCartResponse {
+
+	@JsonProperty
+	private final Cart cart;
+
+	@JsonProperty
+	private final List<CartOperationError> errors;
+
+	public BatchModifyCartResponse(Cart cart, List<CartOperationError> errors) {
+		this.cart = cart;
+		this.errors = errors;
+	}
+
+	public Cart getCart() {
+		return cart;
+	}
+
+	public List<CartOperationError> getErrors() {
+		return errors;
+	}
+}
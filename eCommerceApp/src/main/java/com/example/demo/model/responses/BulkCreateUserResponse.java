@@ -0,0 +1,41 @@
+package com.example.demo.model.responses;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class BulkCreateUserResponse {
+
+	@JsonProperty
+	private final int created;
+
+	@JsonProperty
+	private final int rejected;
+
+	@JsonProperty
+	private final List<BulkCreateUserResult> results;
+
+	public BulkCreateUserResponse(List<BulkCreateUserResult> results) {
+		int createdCount = 0;
+		for (BulkCreateUserResult result : results) {
+			if (result.getStatus() == BulkCreateUserResult.Status.CREATED) {
+				createdCount++;
+			}
+		}
+		this.created = createdCount;
+		this.rejected = results.size() - createdCount;
+		this.results = results;
+	}
+
+	public int getCreated() {
+		return created;
+	}
+
+	public int getRejected() {
+		return rejected;
+	}
+
+	public List<BulkCreateUserResult> getResults() {
+		return results;
+	}
+}
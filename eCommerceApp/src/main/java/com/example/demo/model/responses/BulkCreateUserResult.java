@@ -0,0 +1,62 @@
+package com.example.demo.model.responses;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Outcome of one row of a bulk user creation request, in the same position as the row in the request.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BulkCreateUserResult {
+
+	public enum Status {
+		CREATED,
+		INVALID_USERNAME,
+		INVALID_PASSWORD,
+		DUPLICATE_IN_REQUEST,
+		USERNAME_TAKEN,
+		FAILED
+	}
+
+	@JsonProperty
+	private final int index;
+
+	@JsonProperty
+	private final String username;
+
+	@JsonProperty
+	private Status status;
+
+	@JsonProperty
+	private Long id;
+
+	public BulkCreateUserResult(int index, String username, Status status) {
+		this.index = index;
+		this.username = username;
+		this.status = status;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+}
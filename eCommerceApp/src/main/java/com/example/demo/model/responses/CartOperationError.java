@@ -0,0 +1,28 @@
+package com.example.demo.model.responses;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Why one operation of a batch cart request was skipped, in the same position as the operation in the request.
+ */
+public class CartOperationError {
+
+	@JsonProperty
+	private final int index;
+
+	@JsonProperty
+	private final String message;
+
+	public CartOperationError(int index, String message) {
+		this.index = index;
+		this.message = message;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,29 @@
+package com.example.demo.model.responses;
+
+import java.util.List;
+
+import com.example.demo.model.persistence.UserOrder;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class OrderHistoryPage {
+
+	@JsonProperty
+	private final List<UserOrder> orders;
+
+	// Cursor for the next page, passed back as "after"; null on the last page
+	@JsonProperty
+	private final Long next;
+
+	public OrderHistoryPage(List<UserOrder> orders, Long next) {
+		this.orders = orders;
+		this.next = next;
+	}
+
+	public List<UserOrder> getOrders() {
+		return orders;
+	}
+
+	public Long getNext() {
+		return next;
+	}
+}
@@ -0,0 +1,34 @@
+package com.example.demo.model.responses;
+
+import com.example.demo.model.persistence.Money;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class OrderStatsResponse {
+
+	@JsonProperty
+	private final long orders;
+
+	@JsonProperty
+	private final long units;
+
+	@JsonProperty
+	private final Money total;
+
+	public OrderStatsResponse(long orders, long units, Money total) {
+		this.orders = orders;
+		this.units = units;
+		this.total = total;
+	}
+
+	public long getOrders() {
+		return orders;
+	}
+
+	public long getUnits() {
+		return units;
+	}
+
+	public Money getTotal() {
+		return total;
+	}
+}
@@ -0,0 +1,31 @@
+package com.example.demo.model.responses;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class OrderStatusResponse {
+
+	public enum Status {
+		QUEUED,
+		PLACED,
+		FAILED
+	}
+
+	@JsonProperty
+	private final long id;
+
+	@JsonProperty
+	private final Status status;
+
+	public OrderStatusResponse(long id, Status status) {
+		this.id = id;
+		this.status = status;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+}
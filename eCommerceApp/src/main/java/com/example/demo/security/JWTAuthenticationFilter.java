@@ -1,48 +1,103 @@
 package com.example.demo.security;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.UUID;
 
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
 
 import com.auth0.jwt.JWT;
-import com.example.demo.model.persistence.User;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.example.demo.model.requests.LoginCredentials;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import static com.auth0.jwt.algorithms.Algorithm.HMAC512;
 
 public class JWTAuthenticationFilter extends UsernamePasswordAuthenticationFilter {
 
+    static final int MAX_LOGIN_BODY_BYTES = 4 * 1024;
+
+    private static final Algorithm ALGORITHM = HMAC512(SecurityConstants.SECRET.getBytes());
+
+    // Built once: ObjectReader is immutable and thread safe, unlike constructing an ObjectMapper per login
+    private static final ObjectReader CREDENTIALS_READER = new ObjectMapper().readerFor(LoginCredentials.class);
+
     private AuthenticationManager authenticationManager;
+    private RateLimiter rateLimiter;
 
-    public JWTAuthenticationFilter(AuthenticationManager authenticationManager) {
+    public JWTAuthenticationFilter(AuthenticationManager authenticationManager, RateLimiter rateLimiter) {
         this.authenticationManager = authenticationManager;
+        this.rateLimiter = rateLimiter;
     }
 
+    /**
+     * Returns null, which tells the parent filter the response has already been written, when the request
+     * is rejected before authentication is attempted.
+     */
     @Override
     public Authentication attemptAuthentication(HttpServletRequest req,
                                                 HttpServletResponse res) throws AuthenticationException {
+        // Throttle per IP before paying for anything, then per username once we know it. The IP is the forwarded
+        // client's when the request came through a trusted proxy (server.use-forward-headers)
+        long retryAfter = rateLimiter.tryAcquire(RateLimitFilter.LOGIN_GROUP, "ip:" + req.getRemoteAddr());
+        if (retryAfter > 0) {
+            RateLimitFilter.reject(res, retryAfter);
+            return null;
+        }
+        if (req.getContentLengthLong() > MAX_LOGIN_BODY_BYTES) {
+            res.setStatus(HttpStatus.PAYLOAD_TOO_LARGE.value());
+            return null;
+        }
+        LoginCredentials credentials;
         try {
-            User credentials = new ObjectMapper()
-                    .readValue(req.getInputStream(), User.class);
+            byte[] body = new byte[MAX_LOGIN_BODY_BYTES + 1];
+            int length = readFully(req.getInputStream(), body);
+            if (length > MAX_LOGIN_BODY_BYTES) {
+                res.setStatus(HttpStatus.PAYLOAD_TOO_LARGE.value());
+                return null;
+            }
+            credentials = length == 0 ? null : CREDENTIALS_READER.readValue(body, 0, length);
+        } catch (JsonProcessingException e) {
+            credentials = null;
+        } catch (IOException e) {
+            throw new AuthenticationServiceException("Failed to read login request", e);
+        }
+        if (credentials == null || credentials.getUsername() == null || credentials.getPassword() == null) {
+            res.setStatus(HttpStatus.BAD_REQUEST.value());
+            return null;
+        }
+        retryAfter = rateLimiter.tryAcquire(RateLimitFilter.LOGIN_GROUP, "user:" + credentials.getUsername());
+        if (retryAfter > 0) {
+            RateLimitFilter.reject(res, retryAfter);
+            return null;
+        }
 
+        try {
             return authenticationManager.authenticate(
                     new UsernamePasswordAuthenticationToken(
                             credentials.getUsername(),
                             credentials.getPassword(),
                             new ArrayList<>()));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        } catch (PasswordHashingRejectedException e) {
+            res.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            res.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            return null;
         }
     }
 
@@ -52,10 +107,26 @@ public class JWTAuthenticationFilter extends UsernamePasswordAuthenticationFilte
                                             FilterChain chain,
                                             Authentication auth) throws IOException, ServletException {
 
+        SecurityUser user = (SecurityUser) auth.getPrincipal();
         String token = JWT.create()
-                .withSubject(((org.springframework.security.core.userdetails.User) auth.getPrincipal()).getUsername())
+                .withSubject(user.getUsername())
+                .withJWTId(UUID.randomUUID().toString())
+                .withClaim(SecurityConstants.USER_ID_CLAIM, user.getUserId())
+                .withClaim(SecurityConstants.CART_ID_CLAIM, user.getCartId())
                 .withExpiresAt(new Date(System.currentTimeMillis() + SecurityConstants.EXPIRATION_TIME))
-                .sign(HMAC512(SecurityConstants.SECRET.getBytes()));
+                .sign(ALGORITHM);
         res.addHeader(SecurityConstants.HEADER_STRING, SecurityConstants.TOKEN_PREFIX + token);
     }
+
+    /**
+     * Reads until the stream ends or the buffer is full, returning the number of bytes read.
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
 }
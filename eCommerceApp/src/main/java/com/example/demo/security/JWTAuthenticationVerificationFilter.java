@@ -11,18 +11,28 @@ import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
-import org.springframework.stereotype.Component;
 
 import com.auth0.jwt.JWT;
+import com.auth0.jwt.JWTVerifier;
+import com.auth0.jwt.interfaces.DecodedJWT;
 
 
 import static com.auth0.jwt.algorithms.Algorithm.HMAC512;
 
-@Component
 public class JWTAuthenticationVerificationFilter extends BasicAuthenticationFilter {
 
-    public JWTAuthenticationVerificationFilter(AuthenticationManager authManager) {
+    // JWTVerifier is immutable and thread safe, so one instance serves every request
+    private static final JWTVerifier VERIFIER = JWT.require(HMAC512(SecurityConstants.SECRET.getBytes())).build();
+
+    private final VerifiedTokenCache verifiedTokenCache;
+    private final TokenRevocationService tokenRevocationService;
+
+    public JWTAuthenticationVerificationFilter(AuthenticationManager authManager,
+                                               VerifiedTokenCache verifiedTokenCache,
+                                               TokenRevocationService tokenRevocationService) {
         super(authManager);
+        this.verifiedTokenCache = verifiedTokenCache;
+        this.tokenRevocationService = tokenRevocationService;
     }
 
     @Override
@@ -44,11 +54,22 @@ public class JWTAuthenticationVerificationFilter extends BasicAuthenticationFilt
     private UsernamePasswordAuthenticationToken getAuthentication(HttpServletRequest req) {
         String token = req.getHeader(SecurityConstants.HEADER_STRING);
         if (token != null) {
-            String user = JWT.require(HMAC512(SecurityConstants.SECRET.getBytes())).build()
-                    .verify(token.replace(SecurityConstants.TOKEN_PREFIX, ""))
-                    .getSubject();
-            if (user != null) {
-                return new UsernamePasswordAuthenticationToken(user, null, new ArrayList<>());
+            token = token.substring(SecurityConstants.TOKEN_PREFIX.length());
+            JWTPrincipal principal = verifiedTokenCache.get(token);
+            if (principal == null) {
+                DecodedJWT jwt = VERIFIER.verify(token);
+                String user = jwt.getSubject();
+                if (user != null) {
+                    principal = new JWTPrincipal(user,
+                            jwt.getClaim(SecurityConstants.USER_ID_CLAIM).asLong(),
+                            jwt.getClaim(SecurityConstants.CART_ID_CLAIM).asLong(),
+                            jwt.getId(),
+                            jwt.getExpiresAt());
+                    verifiedTokenCache.put(token, principal, jwt.getExpiresAt());
+                }
+            }
+            if (principal != null && !tokenRevocationService.isRevoked(principal.getTokenId())) {
+                return new UsernamePasswordAuthenticationToken(principal, null, new ArrayList<>());
             }
             return null;
         }
@@ -0,0 +1,63 @@
+package com.example.demo.security;
+
+import java.util.Date;
+
+/**
+ * Principal placed in the security context for requests carrying a valid bearer token. The user id and
+ * cart id come straight from the token claims, so controllers can go to the user's cart or orders by key
+ * instead of looking the user up by name first. Tokens issued before the claims existed leave them null.
+ * <p>
+ * Deliberately not a {@link java.security.Principal}: Spring MVC would then resolve controller parameters of
+ * this type to the servlet user principal instead of honouring {@code @AuthenticationPrincipal}.
+ */
+public class JWTPrincipal {
+
+    private final String username;
+    private final Long userId;
+    private final Long cartId;
+    private final String tokenId;
+    private final Date expiresAt;
+
+    public JWTPrincipal(String username, Long userId, Long cartId, String tokenId, Date expiresAt) {
+        this.username = username;
+        this.userId = userId;
+        this.cartId = cartId;
+        this.tokenId = tokenId;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getName() {
+        return username;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public Long getCartId() {
+        return cartId;
+    }
+
+    /**
+     * The jti claim identifying the token for revocation, null for tokens issued without one.
+     */
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Whether this principal is the given user, i.e. the username from a path or request body matches the token.
+     */
+    public boolean isUser(String username) {
+        return this.username.equals(username);
+    }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.demo.security;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Fixed size pool that runs all password hashing and matching. Capping the number of threads doing bcrypt
+ * work, and failing fast once the queue in front of them is full, keeps a burst of logins or signups from
+ * tying up every servlet thread while cheap catalog and cart requests wait behind them.
+ */
+@Component
+public class PasswordHashingExecutor implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(PasswordHashingExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long maxWaitMillis;
+    private final int retryAfterSeconds;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public PasswordHashingExecutor(@Value("${security.password-hashing.pool-size:0}") int poolSize,
+                                   @Value("${security.password-hashing.queue-capacity:64}") int queueCapacity,
+                                   @Value("${security.password-hashing.max-wait-millis:5000}") long maxWaitMillis,
+                                   @Value("${security.password-hashing.retry-after-seconds:1}") int retryAfterSeconds) {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "password-hashing-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.maxWaitMillis = maxWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Runs the given hashing work on the pool and waits for its result.
+     *
+     * @throws PasswordHashingRejectedException if the queue is full or the work doesn't finish in time
+     */
+    public <T> T execute(Callable<T> work) {
+        return await(submit(work));
+    }
+
+    /**
+     * Runs a batch of hashing work with at most {@code maxInFlight} items on the pool at a time, so a bulk job
+     * leaves room in the queue for interactive logins, and returns the results in the order of the work.
+     *
+     * @throws PasswordHashingRejectedException if an item is turned away or doesn't finish in time, in which
+     *         case the items still in flight are cancelled
+     */
+    public <T> List<T> executeAll(List<? extends Callable<T>> work, int maxInFlight) {
+        List<T> results = new ArrayList<>(work.size());
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+        try {
+            for (Callable<T> item : work) {
+                if (inFlight.size() >= Math.max(1, maxInFlight)) {
+                    results.add(await(inFlight.poll()));
+                }
+                inFlight.add(submit(item));
+            }
+            while (!inFlight.isEmpty()) {
+                results.add(await(inFlight.poll()));
+            }
+            return results;
+        } finally {
+            // Only left over when an item failed
+            inFlight.forEach(future -> future.cancel(true));
+        }
+    }
+
+    public int getPoolSize() {
+        return executor.getCorePoolSize();
+    }
+
+    private <T> Future<T> submit(Callable<T> work) {
+        try {
+            return executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return work.call();
+                } finally {
+                    hashNanos.add(System.nanoTime() - start);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new PasswordHashingRejectedException("Password hashing queue is full", retryAfterSeconds, e);
+        }
+    }
+
+    private <T> T await(Future<T> future) {
+        try {
+            return future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            rejected.increment();
+            throw new PasswordHashingRejectedException("Timed out waiting for password hashing", retryAfterSeconds, e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PasswordHashingRejectedException("Interrupted waiting for password hashing", retryAfterSeconds, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                log.warn("Password hashing pool did not terminate, {} tasks dropped", executor.shutdownNow().size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("security.password.hashing.queue.depth", this, PasswordHashingExecutor::getQueueDepth)
+                .register(registry);
+        Gauge.builder("security.password.hashing.active", executor, ThreadPoolExecutor::getActiveCount)
+                .register(registry);
+        FunctionTimer.builder("security.password.hashing.latency", this,
+                e -> e.completed.sum(), e -> e.hashNanos.sum(), TimeUnit.NANOSECONDS)
+                .register(registry);
+        FunctionCounter.builder("security.password.hashing.rejected", rejected, LongAdder::sum).register(registry);
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.demo.security;
+
+/**
+ * Thrown when the password hashing pool is saturated and a hash or match request is turned away rather
+ * than left to queue behind other logins.
+ */
+public class PasswordHashingRejectedException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public PasswordHashingRejectedException(String message, int retryAfterSeconds, Throwable cause) {
+        super(message, cause);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Seconds the client should wait before retrying, sent back as the Retry-After header.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
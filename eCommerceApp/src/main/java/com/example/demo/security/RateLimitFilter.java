@@ -0,0 +1,85 @@
+package com.example.demo.security;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Applies the signup, provisioning, cart and order rate limits. It sits after token verification so authenticated
+ * requests are limited per user rather than per IP. Login never gets this far down the chain and is
+ * limited by {@link JWTAuthenticationFilter} itself.
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    public static final String LOGIN_GROUP = "login";
+    public static final String SIGNUP_GROUP = "signup";
+    public static final String PROVISIONING_GROUP = "provisioning";
+    public static final String CART_GROUP = "cart";
+    public static final String ORDER_GROUP = "order";
+
+    private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+
+    private final RateLimiter rateLimiter;
+
+    public RateLimitFilter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest req, HttpServletResponse res, FilterChain chain)
+            throws ServletException, IOException {
+        String group = groupOf(req.getServletPath());
+        if (group != null) {
+            long retryAfter = rateLimiter.tryAcquire(group, clientKey(req));
+            if (retryAfter > 0) {
+                reject(res, retryAfter);
+                return;
+            }
+        }
+        chain.doFilter(req, res);
+    }
+
+    /**
+     * Writes a 429 with the Retry-After header.
+     */
+    static void reject(HttpServletResponse res, long retryAfterSeconds) {
+        res.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        res.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+    }
+
+    private static String groupOf(String path) {
+        if (SecurityConstants.SIGN_UP_URL.equals(path)) {
+            return SIGNUP_GROUP;
+        }
+        if ("/api/user/bulkCreate".equals(path)) {
+            return PROVISIONING_GROUP;
+        }
+        if (PATH_MATCHER.match("/api/cart/**", path)) {
+            return CART_GROUP;
+        }
+        if (PATH_MATCHER.match("/api/order/**", path)) {
+            return ORDER_GROUP;
+        }
+        return null;
+    }
+
+    private static String clientKey(HttpServletRequest req) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && auth.getPrincipal() instanceof JWTPrincipal) {
+            return "user:" + ((JWTPrincipal) auth.getPrincipal()).getName();
+        }
+        // Behind a trusted proxy Tomcat has already replaced the proxy's address with the forwarded client's
+        // (server.use-forward-headers)
+        return "ip:" + req.getRemoteAddr();
+    }
+}
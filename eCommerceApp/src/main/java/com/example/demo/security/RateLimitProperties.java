@@ -0,0 +1,79 @@
+package com.example.demo.security;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Request rate limits per endpoint group (login, signup, provisioning, cart, order), bound from security.rate-limit.*.
+ * Groups without an entry are not limited.
+ */
+@Component
+@ConfigurationProperties(prefix = "security.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    /**
+     * Upper bound on tracked keys; idle buckets are swept long before this is reached in normal operation. Past
+     * it, new keys take the place of refilled buckets, or share one bucket per group while none are refilled.
+     */
+    private int maxBuckets = 1_000_000;
+
+    private Map<String, Limit> groups = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    public void setMaxBuckets(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
+
+    public Map<String, Limit> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(Map<String, Limit> groups) {
+        this.groups = groups;
+    }
+
+    public static class Limit {
+
+        /**
+         * Requests allowed in a burst.
+         */
+        private int capacity;
+
+        /**
+         * Sustained requests per second.
+         */
+        private double refillPerSecond;
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public double getRefillPerSecond() {
+            return refillPerSecond;
+        }
+
+        public void setRefillPerSecond(double refillPerSecond) {
+            this.refillPerSecond = refillPerSecond;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.demo.security;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Token bucket rate limiter keyed by endpoint group and client key (username or IP).
+ * <p>
+ * Each bucket is a single AtomicLong holding its theoretical arrival time, the generic cell rate algorithm
+ * formulation of a token bucket, so acquiring is one CAS with no locks and no allocation. A bucket whose
+ * arrival time has passed is full, indistinguishable from a new one, and is dropped by the periodic sweep,
+ * which keeps memory proportional to recently active keys.
+ * <p>
+ * Once max-buckets keys are tracked, a new key replaces a full bucket found by looking at a few buckets,
+ * resuming where the previous look stopped. If none of those is full the active buckets are kept and the new
+ * key is limited by a bucket shared by all such keys of its group, so a flood of new keys can neither grow the
+ * map nor reset the limits of clients already being throttled.
+ */
+@Component
+public class RateLimiter implements MeterBinder {
+
+    private static final int EVICTION_PROBES = 32;
+
+    private final RateLimitProperties properties;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    // Per group, for new keys arriving while the map is full of active buckets
+    private final ConcurrentHashMap<String, AtomicLong> overflow = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private Iterator<AtomicLong> evictionCursor;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+
+    public RateLimiter(RateLimitProperties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Takes one token from the bucket for the group and key.
+     *
+     * @return 0 if the request may proceed, otherwise the number of seconds until it would be allowed
+     */
+    public long tryAcquire(String group, String key) {
+        RateLimitProperties.Limit limit = properties.getGroups().get(group);
+        if (!properties.isEnabled() || limit == null || limit.getRefillPerSecond() <= 0 || key == null) {
+            return 0;
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / limit.getRefillPerSecond());
+        long tolerance = interval * Math.max(0, limit.getCapacity() - 1);
+
+        AtomicLong bucket = bucket(group, key);
+        long now = System.nanoTime();
+        while (true) {
+            long tat = bucket.get();
+            long start = tat - now > 0 ? tat : now;
+            long wait = start - now - tolerance;
+            if (wait > 0) {
+                rejected.increment();
+                return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+            }
+            if (bucket.compareAndSet(tat, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drops buckets that have refilled completely.
+     */
+    @Scheduled(fixedDelayString = "${security.rate-limit.sweep-interval-millis:60000}")
+    public void sweep() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private AtomicLong bucket(String group, String key) {
+        String id = group + ':' + key;
+        AtomicLong bucket = buckets.get(id);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (buckets.size() >= properties.getMaxBuckets() && !evictFull()) {
+            overflowed.increment();
+            return overflow.computeIfAbsent(group, g -> new AtomicLong(System.nanoTime()));
+        }
+        return buckets.computeIfAbsent(id, k -> new AtomicLong(System.nanoTime()));
+    }
+
+    /**
+     * Removes one bucket that has refilled completely, looking at no more than EVICTION_PROBES buckets.
+     *
+     * @return whether a bucket was removed
+     */
+    private boolean evictFull() {
+        synchronized (evictionLock) {
+            long now = System.nanoTime();
+            for (int i = 0; i < EVICTION_PROBES; i++) {
+                if (evictionCursor == null || !evictionCursor.hasNext()) {
+                    evictionCursor = buckets.values().iterator();
+                    if (!evictionCursor.hasNext()) {
+                        return false;
+                    }
+                }
+                if (evictionCursor.next().get() - now <= 0) {
+                    evictionCursor.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("security.rate.limit.rejected", rejected, LongAdder::sum).register(registry);
+        FunctionCounter.builder("security.rate.limit.overflowed", overflowed, LongAdder::sum)
+                .description("Requests of new keys limited by their group's shared bucket as all buckets were in use")
+                .register(registry);
+        Gauge.builder("security.rate.limit.buckets", buckets, Map::size).register(registry);
+    }
+}
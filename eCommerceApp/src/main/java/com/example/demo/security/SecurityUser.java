@@ -0,0 +1,30 @@
+package com.example.demo.security;
+
+import java.util.Collection;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+/**
+ * UserDetails that also carries the ids needed to issue the user id and cart id token claims.
+ */
+public class SecurityUser extends User {
+
+    private final long userId;
+    private final Long cartId;
+
+    public SecurityUser(long userId, Long cartId, String username, String password,
+                        Collection<? extends GrantedAuthority> authorities) {
+        super(username, password, authorities);
+        this.userId = userId;
+        this.cartId = cartId;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public Long getCartId() {
+        return cartId;
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.demo.security;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.demo.model.persistence.RevokedToken;
+import com.example.demo.model.persistence.repositories.RevokedTokenRepository;
+import com.example.demo.util.BloomFilter;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Denylist of revoked token ids. The revoked_token table is authoritative; an in-memory Bloom filter in
+ * front of it answers "definitely not revoked" for almost every request without touching the database,
+ * and only a possible match falls through to a primary key lookup. The filter is rebuilt periodically
+ * from the table once expired rows have been deleted, which keeps it from filling up.
+ */
+@Component
+public class TokenRevocationService implements MeterBinder {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenRevocationService.class);
+
+    private final RevokedTokenRepository revokedTokenRepository;
+    private final long expectedRevocations;
+    private final double falsePositiveRate;
+    private final LongAdder filterChecks = new LongAdder();
+    private final LongAdder databaseChecks = new LongAdder();
+
+    private volatile BloomFilter filter;
+    // Non-null while a rebuild is loading ids, so revocations made meanwhile land in the new filter too
+    private volatile BloomFilter building;
+
+    public TokenRevocationService(RevokedTokenRepository revokedTokenRepository,
+                                  @Value("${security.revocation.expected-revocations:100000}") long expectedRevocations,
+                                  @Value("${security.revocation.false-positive-rate:0.001}") double falsePositiveRate) {
+        this.revokedTokenRepository = revokedTokenRepository;
+        this.expectedRevocations = expectedRevocations;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filter = new BloomFilter(expectedRevocations, falsePositiveRate);
+    }
+
+    @PostConstruct
+    public void init() {
+        rebuild();
+    }
+
+    public void revoke(String tokenId, Date expiresAt) {
+        // Persist before looking at the rebuild in progress: a rebuild that starts after this read is
+        // guaranteed to see the row, one already running gets the id put into its new filter directly
+        revokedTokenRepository.save(new RevokedToken(tokenId, expiresAt));
+        BloomFilter next = building;
+        filter.put(tokenId);
+        if (next != null) {
+            next.put(tokenId);
+        }
+        log.info("Token {} revoked", tokenId);
+    }
+
+    public boolean isRevoked(String tokenId) {
+        if (tokenId == null) {
+            return false;
+        }
+        filterChecks.increment();
+        if (!filter.mightContain(tokenId)) {
+            return false;
+        }
+        databaseChecks.increment();
+        return revokedTokenRepository.existsById(tokenId);
+    }
+
+    /**
+     * Drops rows for tokens that have expired anyway and swaps in a filter built from what's left.
+     */
+    @Scheduled(initialDelayString = "${security.revocation.rebuild-interval-millis:600000}",
+            fixedDelayString = "${security.revocation.rebuild-interval-millis:600000}")
+    public void rebuild() {
+        int purged = revokedTokenRepository.deleteExpired(new Date());
+        BloomFilter next = new BloomFilter(expectedRevocations, falsePositiveRate);
+        building = next;
+        try {
+            List<String> tokenIds = revokedTokenRepository.findAllTokenIds();
+            if (tokenIds.size() > expectedRevocations) {
+                log.warn("{} revoked tokens exceed the expected {}, false positive rate will rise",
+                        tokenIds.size(), expectedRevocations);
+            }
+            tokenIds.forEach(next::put);
+            filter = next;
+            log.debug("Revocation filter rebuilt with {} tokens, {} expired rows purged", tokenIds.size(), purged);
+        } finally {
+            building = null;
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("security.revocation.filter.checks", filterChecks, LongAdder::sum)
+                .register(registry);
+        FunctionCounter.builder("security.revocation.database.checks", databaseChecks, LongAdder::sum)
+                .register(registry);
+    }
+}
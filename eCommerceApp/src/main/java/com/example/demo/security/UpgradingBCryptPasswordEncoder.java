@@ -0,0 +1,77 @@
+package com.example.demo.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * BCryptPasswordEncoder that knows its own strength and reports hashes stored at a lower cost as needing an
+ * upgrade, so they are re-encoded the next time their owner logs in successfully.
+ */
+public class UpgradingBCryptPasswordEncoder extends BCryptPasswordEncoder {
+
+    private static final Logger log = LoggerFactory.getLogger(UpgradingBCryptPasswordEncoder.class);
+
+    private static final String CALIBRATION_PASSWORD = "calibration-password";
+
+    private final int strength;
+
+    public UpgradingBCryptPasswordEncoder(int strength) {
+        super(strength);
+        this.strength = strength;
+    }
+
+    /**
+     * Builds an encoder using the highest strength between min and max whose hash time on this machine stays
+     * within the target latency. Each step up doubles the work, so the search stops at the first strength
+     * that overshoots.
+     */
+    public static UpgradingBCryptPasswordEncoder calibrated(long targetMillis, int minStrength, int maxStrength) {
+        // Warm up so class loading and JIT don't count against the first measurement
+        BCrypt.hashpw(CALIBRATION_PASSWORD, BCrypt.gensalt(4));
+        int chosen = minStrength;
+        for (int s = minStrength; s <= maxStrength; s++) {
+            long start = System.nanoTime();
+            BCrypt.hashpw(CALIBRATION_PASSWORD, BCrypt.gensalt(s));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            if (elapsedMillis > targetMillis && s > minStrength) {
+                break;
+            }
+            chosen = s;
+            log.debug("bcrypt strength {} took {} ms", s, elapsedMillis);
+        }
+        log.info("Calibrated bcrypt strength to {} for a target of {} ms", chosen, targetMillis);
+        return new UpgradingBCryptPasswordEncoder(chosen);
+    }
+
+    public int getStrength() {
+        return strength;
+    }
+
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        int cost = costOf(encodedPassword);
+        return cost >= 0 && cost < strength;
+    }
+
+    /**
+     * Reads the cost out of a hash of the form $2a$NN$..., or returns -1 if it isn't one.
+     */
+    static int costOf(String encodedPassword) {
+        if (encodedPassword == null || encodedPassword.length() < 7 || encodedPassword.charAt(0) != '$') {
+            return -1;
+        }
+        int costStart = encodedPassword.indexOf('$', 1) + 1;
+        if (costStart <= 0 || costStart + 2 >= encodedPassword.length()
+                || encodedPassword.charAt(costStart + 2) != '$') {
+            return -1;
+        }
+        char tens = encodedPassword.charAt(costStart);
+        char units = encodedPassword.charAt(costStart + 1);
+        if (!Character.isDigit(tens) || !Character.isDigit(units)) {
+            return -1;
+        }
+        return (tens - '0') * 10 + (units - '0');
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.demo.security;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+
+import com.example.demo.util.ExpiringCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Bounded, time-expiring cache of the UserDetails used for login, so retry loops and credential stuffing
+ * against the same usernames don't each cost a user table query. Entries must be evicted whenever a user is
+ * created or their password changes.
+ * <p>
+ * Copies go in and out of the cache because the authentication manager erases the password of the
+ * UserDetails it was handed once a login succeeds.
+ */
+@Component
+public class UserDetailsCache implements UserCache, MeterBinder {
+
+    private final ExpiringCache<String, SecurityUser> cache;
+    private final long ttlMillis;
+
+    public UserDetailsCache(@Value("${security.user-cache.max-size:10000}") int maxSize,
+                            @Value("${security.user-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.cache = new ExpiringCache<>(maxSize);
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    @Override
+    public UserDetails getUserFromCache(String username) {
+        SecurityUser user = cache.get(username);
+        return user == null ? null : copyOf(user);
+    }
+
+    @Override
+    public void putUserInCache(UserDetails user) {
+        if (user instanceof SecurityUser) {
+            cache.put(user.getUsername(), copyOf((SecurityUser) user), System.currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    @Override
+    public void removeUserFromCache(String username) {
+        cache.remove(username);
+    }
+
+    /**
+     * Drops expired entries that are never looked up again, which would otherwise sit there until evicted.
+     */
+    @Scheduled(initialDelayString = "${security.user-cache.purge-interval-millis:60000}",
+            fixedDelayString = "${security.user-cache.purge-interval-millis:60000}")
+    public void purgeExpired() {
+        cache.purgeExpired();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("security.user.cache.hits", cache, ExpiringCache::getHitCount).register(registry);
+        FunctionCounter.builder("security.user.cache.misses", cache, ExpiringCache::getMissCount).register(registry);
+        Gauge.builder("security.user.cache.hit.ratio", cache, ExpiringCache::getHitRatio).register(registry);
+        Gauge.builder("security.user.cache.size", cache, ExpiringCache::size).register(registry);
+    }
+
+    private static SecurityUser copyOf(SecurityUser user) {
+        return new SecurityUser(user.getUserId(), user.getCartId(), user.getUsername(), user.getPassword(),
+                user.getAuthorities());
+    }
+}
@@ -3,7 +3,9 @@ package com.example.demo.security;
 import java.util.Collections;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.userdetails.UserCache;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
@@ -12,17 +14,45 @@ import com.example.demo.model.persistence.User;
 import com.example.demo.model.persistence.repositories.UserRepository;
 
 @Service
-public class UserDetailsServiceImpl implements UserDetailsService {
+public class UserDetailsServiceImpl implements UserDetailsService, UserDetailsPasswordService {
 
     @Autowired
     private UserRepository userRepository;
 
+    @Autowired
+    private UserCache userCache;
+
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+        UserDetails cached = userCache.getUserFromCache(username);
+        if (cached != null) {
+            return cached;
+        }
         User user = userRepository.findByUsername(username);
         if (user == null) {
             throw new UsernameNotFoundException(username);
         }
-        return new org.springframework.security.core.userdetails.User(user.getUsername(), user.getPassword(), Collections.emptyList());
+        Long cartId = user.getCart() == null ? null : user.getCart().getId();
+        UserDetails details = new SecurityUser(user.getId(), cartId, user.getUsername(), user.getPassword(),
+                Collections.emptyList());
+        userCache.putUserInCache(details);
+        return details;
+    }
+
+    /**
+     * Called by the authentication provider after a successful login when the stored hash was encoded at a
+     * lower cost than the current encoder uses, with the password re-encoded at the current cost.
+     */
+    @Override
+    public UserDetails updatePassword(UserDetails userDetails, String newPassword) {
+        User user = userRepository.findByUsername(userDetails.getUsername());
+        if (user == null) {
+            return userDetails;
+        }
+        user.setPassword(newPassword);
+        userRepository.save(user);
+        userCache.removeUserFromCache(user.getUsername());
+        Long cartId = user.getCart() == null ? null : user.getCart().getId();
+        return new SecurityUser(user.getId(), cartId, user.getUsername(), newPassword, userDetails.getAuthorities());
     }
 }
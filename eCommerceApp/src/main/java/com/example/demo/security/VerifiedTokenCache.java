@@ -0,0 +1,79 @@
+package com.example.demo.security;
+
+import java.util.Date;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.demo.util.ExpiringCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Bounded cache of bearer tokens that have already passed signature verification, mapped to the principal
+ * built from their claims. Entries never outlive the token's own expiry, so a cached token is only trusted
+ * for as long as the verifier itself would have accepted it.
+ */
+@Component
+public class VerifiedTokenCache implements MeterBinder {
+
+    private final ExpiringCache<String, JWTPrincipal> cache;
+    private final long ttlMillis;
+
+    public VerifiedTokenCache(@Value("${security.token-cache.max-size:10000}") int maxSize,
+                              @Value("${security.token-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.cache = new ExpiringCache<>(maxSize);
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    /**
+     * Returns the principal of a previously verified token, or null if the token is unknown or has expired.
+     */
+    public JWTPrincipal get(String token) {
+        return cache.get(token);
+    }
+
+    public void put(String token, JWTPrincipal principal, Date tokenExpiresAt) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        if (tokenExpiresAt != null) {
+            expiresAt = Math.min(expiresAt, tokenExpiresAt.getTime());
+        }
+        cache.put(token, principal, expiresAt);
+    }
+
+    public void invalidate(String token) {
+        cache.remove(token);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Drops expired entries that are never looked up again, which would otherwise sit there until evicted.
+     */
+    @Scheduled(initialDelayString = "${security.token-cache.purge-interval-millis:60000}",
+            fixedDelayString = "${security.token-cache.purge-interval-millis:60000}")
+    public void purgeExpired() {
+        cache.purgeExpired();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("security.token.cache.hits", cache, ExpiringCache::getHitCount).register(registry);
+        FunctionCounter.builder("security.token.cache.misses", cache, ExpiringCache::getMissCount).register(registry);
+        Gauge.builder("security.token.cache.size", cache, ExpiringCache::size).register(registry);
+    }
+}
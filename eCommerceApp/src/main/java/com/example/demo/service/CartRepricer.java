@@ -0,0 +1,252 @@
+package com.example.demo.service;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.model.persistence.CartLine;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Brings cart totals up to date after an item's price changes. Changed items are polled from the item table
+ * through its (last_modified, id) index, reading only rows written since the newest change the last poll saw, so
+ * a poll costs the same however large the catalogue is. For each changed item the carts whose line for it still
+ * holds another price are found through the (item_id, cart_id) index on cart_line, a page at a time, and each
+ * page is repriced on a worker pool. Carts are repriced through the cart store like any other edit, so a cart is only ever held
+ * up by its own concurrent edits. Carts held by the store with unflushed lines for the item are repriced too.
+ *
+ * <p>A row's last_modified is stamped before its transaction commits, so a change can become visible after a
+ * later one has been seen. Each poll therefore reads again the changes up to {@code cart.reprice.overlap-millis}
+ * older than the newest it has seen, and skips those it already ran. Items written without last_modified being
+ * set, e.g. by hand in SQL, are not found by polling; {@link #priceChanged} reprices them.
+ *
+ * <p>Until a cart has been repriced it keeps its old total; orders are priced at checkout regardless, so the
+ * window only affects what the cart shows. {@code cart.reprice.lag} is the age of the oldest price change not
+ * yet applied to every cart.
+ */
+@Service
+public class CartRepricer implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(CartRepricer.class);
+
+	private static final String SELECT_NEWEST_CHANGE = "select max(last_modified) from item";
+	private static final String SELECT_CHANGED = "select id, last_modified from item where last_modified > ?"
+			+ " order by last_modified, id";
+	private static final String SELECT_STALE_CARTS = "select cart_id from cart_line"
+			+ " where item_id = ? and cart_id > ? and unit_price <> ? order by cart_id limit ?";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final ItemRepository itemRepository;
+	private final CartStore cartStore;
+	private final int batchSize;
+	private final long overlapMillis;
+	private final ExecutorService coordinator;
+	private final ExecutorService workers;
+	// Item id to when its price change was first seen, while carts may still hold the old price
+	private final ConcurrentHashMap<Long, Long> pending = new ConcurrentHashMap<>();
+	// Items with a repricing run waiting to start, so a burst of changes to one item queues a single run
+	private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+	// Newest last_modified seen, and the changes seen within the overlap before it, each with its last_modified
+	private Timestamp highWaterMark;
+	private final Map<Long, Timestamp> seen = new HashMap<>();
+	private final LongAdder repriced = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	public CartRepricer(JdbcTemplate jdbcTemplate, ItemRepository itemRepository, CartStore cartStore,
+			@Value("${cart.reprice.threads:4}") int threads,
+			@Value("${cart.reprice.batch-size:200}") int batchSize,
+			@Value("${cart.reprice.overlap-millis:60000}") long overlapMillis) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.itemRepository = itemRepository;
+		this.cartStore = cartStore;
+		this.batchSize = Math.max(1, batchSize);
+		this.overlapMillis = Math.max(0, overlapMillis);
+		this.coordinator = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "cart-repricer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger workerCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread thread = new Thread(r, "cart-repricer-" + workerCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Not @PostConstruct: the item table is only created and seeded once the persistence unit is up
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		poll();
+	}
+
+	/**
+	 * Reads the items written since the last poll and starts repricing carts for each of them, returning the
+	 * number of such items. The first poll only records where the changes are up to. Items whose last run left
+	 * carts at the old price are run again.
+	 */
+	@Scheduled(initialDelayString = "${cart.reprice.poll-interval-millis:10000}",
+			fixedDelayString = "${cart.reprice.poll-interval-millis:10000}")
+	public synchronized int poll() {
+		boolean first = highWaterMark == null;
+		if (first) {
+			highWaterMark = jdbcTemplate.queryForObject(SELECT_NEWEST_CHANGE, Timestamp.class);
+			if (highWaterMark == null) {
+				return 0;
+			}
+		}
+		List<Long> changed = new ArrayList<>();
+		jdbcTemplate.query(SELECT_CHANGED, rs -> {
+			long itemId = rs.getLong(1);
+			Timestamp modified = rs.getTimestamp(2);
+			if (!modified.equals(seen.put(itemId, modified)) && !first) {
+				changed.add(itemId);
+			}
+			if (modified.after(highWaterMark)) {
+				highWaterMark = modified;
+			}
+		}, new Timestamp(highWaterMark.getTime() - overlapMillis));
+		long horizon = highWaterMark.getTime() - overlapMillis;
+		seen.values().removeIf(modified -> modified.getTime() <= horizon);
+		long now = System.currentTimeMillis();
+		changed.forEach(itemId -> pending.putIfAbsent(itemId, now));
+		for (Long itemId : pending.keySet()) {
+			if (queued.add(itemId)) {
+				coordinator.submit(() -> reprice(itemId));
+			}
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Reprices every cart holding the item in the background, e.g. right after its price has been updated.
+	 *
+	 * @return the number of carts repriced, once done
+	 */
+	public Future<Long> priceChanged(long itemId) {
+		pending.putIfAbsent(itemId, System.currentTimeMillis());
+		queued.add(itemId);
+		return coordinator.submit(() -> reprice(itemId));
+	}
+
+	private long reprice(long itemId) {
+		queued.remove(itemId);
+		Long since = pending.get(itemId);
+		long failed = failures.sum();
+		Optional<Item> item = itemRepository.findById(itemId);
+		if (!item.isPresent()) {
+			pending.remove(itemId);
+			return 0;
+		}
+		long price = item.get().getPrice().getMinorUnits();
+		List<Future<Long>> batches = new ArrayList<>();
+		batches.add(workers.submit(() -> repriceAll(cartStore.heldIds(cart -> {
+			CartLine line = cart.getLine(itemId);
+			return line != null && line.getUnitPrice().getMinorUnits() != price;
+		}), item.get())));
+		long afterId = 0;
+		while (true) {
+			List<Long> page = jdbcTemplate.queryForList(SELECT_STALE_CARTS, Long.class, itemId, afterId, price, batchSize);
+			if (page.isEmpty()) {
+				break;
+			}
+			afterId = page.get(page.size() - 1);
+			batches.add(workers.submit(() -> repriceAll(page, item.get())));
+			if (page.size() < batchSize) {
+				break;
+			}
+		}
+		long carts = 0;
+		for (Future<Long> batch : batches) {
+			try {
+				carts += batch.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return carts;
+			} catch (ExecutionException e) {
+				failures.increment();
+				log.error("Repricing carts for item {} failed", itemId, e.getCause());
+			}
+		}
+		// Runs only ever overlap with edits, not with other runs, so new failures are this run's
+		if (since != null && failures.sum() == failed) {
+			pending.remove(itemId, since);
+		}
+		log.info("Repriced {} carts for item {} at {}", carts, itemId, item.get().getPrice());
+		return carts;
+	}
+
+	private long repriceAll(List<Long> cartIds, Item item) {
+		long carts = 0;
+		for (Long cartId : cartIds) {
+			try {
+				if (cartStore.modify(cartId, cart -> cart.reprice(item)).orElse(false)) {
+					carts++;
+				}
+			} catch (OptimisticLockingFailureException e) {
+				// Left at the old price; the item stays pending and the next poll runs it again
+				failures.increment();
+				log.error("Cart {} is being updated concurrently, not repriced", cartId);
+			}
+		}
+		repriced.add(carts);
+		return carts;
+	}
+
+	private double oldestPendingAgeMillis() {
+		long oldest = Long.MAX_VALUE;
+		for (long since : pending.values()) {
+			oldest = Math.min(oldest, since);
+		}
+		return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		coordinator.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		TimeGauge.builder("cart.reprice.lag", this, TimeUnit.MILLISECONDS, CartRepricer::oldestPendingAgeMillis)
+				.description("Age of the oldest item price change not yet applied to every cart holding the item")
+				.register(registry);
+		Gauge.builder("cart.reprice.pending", pending, Map::size)
+				.description("Items whose price changed and whose carts are still being repriced")
+				.register(registry);
+		FunctionCounter.builder("cart.reprice.carts", repriced, LongAdder::sum).register(registry);
+		FunctionCounter.builder("cart.reprice.failures", failures, LongAdder::sum).register(registry);
+	}
+}
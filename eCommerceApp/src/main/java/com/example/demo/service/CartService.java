@@ -0,0 +1,134 @@
+package com.example.demo.service;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.repositories.CartRepository;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Read-modify-write of carts that is safe under concurrent requests for the same cart. Each attempt loads the
+ * cart, applies the change and flushes in its own transaction; the version column on {@link Cart} makes a
+ * concurrent writer's flush fail, and the whole attempt is retried on a fresh copy up to a bounded number of
+ * times. With lock striping on, attempts for the same cart are also serialized within this process, so a busy
+ * cart queues locally instead of repeatedly losing the race at the database.
+ */
+@Service
+public class CartService implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(CartService.class);
+
+	private final CartRepository cartRepository;
+	private final TransactionTemplate transactionTemplate;
+	private final int maxAttempts;
+	private final long backoffMillis;
+	private final ReentrantLock[] stripes;
+	private final LongAdder conflicts = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+
+	public CartService(CartRepository cartRepository, PlatformTransactionManager transactionManager,
+			@Value("${cart.update.max-attempts:5}") int maxAttempts,
+			@Value("${cart.update.backoff-millis:10}") long backoffMillis,
+			@Value("${cart.update.lock-striping.enabled:true}") boolean lockStriping,
+			@Value("${cart.update.lock-stripes:64}") int lockStripes) {
+		this.cartRepository = cartRepository;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.backoffMillis = backoffMillis;
+		if (lockStriping) {
+			stripes = new ReentrantLock[Math.max(1, lockStripes)];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new ReentrantLock();
+			}
+		} else {
+			stripes = null;
+		}
+	}
+
+	/**
+	 * Applies a change to the cart with the given id and saves it. The change may run more than once, each time
+	 * against a freshly loaded cart, so it must derive everything it does from the cart it is given. Called inside
+	 * a transaction it joins it and is tried only once, as a failed attempt dooms the caller's transaction.
+	 *
+	 * @return what the change returned on the attempt that was saved, or empty if the cart doesn't exist
+	 * @throws OptimisticLockingFailureException if every attempt lost to a concurrent update
+	 */
+	public <R> Optional<R> modify(long cartId, Function<Cart, R> change) {
+		ReentrantLock lock = stripes == null ? null : stripes[stripe(cartId)];
+		if (lock != null) {
+			lock.lock();
+		}
+		try {
+			int attempts = TransactionSynchronizationManager.isActualTransactionActive() ? 1 : maxAttempts;
+			for (int attempt = 1; ; attempt++) {
+				try {
+					return transactionTemplate.execute(status -> {
+						Optional<Cart> cart = cartRepository.findWithLinesById(cartId);
+						if (!cart.isPresent()) {
+							return Optional.<R>empty();
+						}
+						R result = change.apply(cart.get());
+						cartRepository.saveAndFlush(cart.get());
+						return Optional.ofNullable(result);
+					});
+				} catch (OptimisticLockingFailureException | DataIntegrityViolationException e) {
+					// Two concurrent first adds of the same item collide on the cart line's unique key rather
+					// than on the version, as Hibernate flushes the line insert before the versioned cart update
+					conflicts.increment();
+					if (attempt >= attempts) {
+						exhausted.increment();
+						log.error("Cart {} still conflicting after {} attempts", cartId, attempt);
+						throw e instanceof OptimisticLockingFailureException ? (OptimisticLockingFailureException) e
+								: new OptimisticLockingFailureException("Cart " + cartId + " update kept conflicting", e);
+					}
+					log.debug("Concurrent update of cart {}, retrying (attempt {})", cartId, attempt);
+					backoff(attempt);
+				}
+			}
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void backoff(int attempt) {
+		if (backoffMillis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(backoffMillis * attempt) + 1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while retrying a cart update", e);
+		}
+	}
+
+	private int stripe(long cartId) {
+		long h = cartId * 0x9E3779B97F4A7C15L;
+		return (int) ((h ^ (h >>> 32)) & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("cart.update.conflicts", conflicts, LongAdder::sum).register(registry);
+		FunctionCounter.builder("cart.update.retries.exhausted", exhausted, LongAdder::sum).register(registry);
+	}
+}
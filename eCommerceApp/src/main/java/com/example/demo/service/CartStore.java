@@ -0,0 +1,583 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+
+import org.hibernate.StaleStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.CartLine;
+import com.example.demo.model.persistence.repositories.CartRepository;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Front for all cart edits. In {@code sync} mode every edit is written straight through {@link CartService}.
+ * In {@code write-behind} mode active carts are kept in memory, edits are applied there, and dirty carts are
+ * written back in batches by a background flush that runs on a timer and whenever enough carts are dirty.
+ * A cart is always flushed before an order is placed from it and everything is flushed on shutdown; edits
+ * made since the last flush are lost if the process dies, which is the durability traded for memory-speed
+ * writes, so sync is the default. This instance assumes it is the only writer of the carts it holds.
+ *
+ * <p>Held carts remember what their last flush wrote, so when unflushed edits have to be dropped the stock
+ * those edits reserved is handed back. Edits of a cart wait while an order is placed from it (see
+ * {@link #checkout}) and then apply to the emptied cart, so no edit is acknowledged and then lost.
+ *
+ * <p>Edits are copy-on-write: each one is applied to a fresh copy of the cart which then replaces the held
+ * one, so a cart handed out to a caller is never changed underneath it apart from its (unserialized) version
+ * and line ids being filled in after a flush.
+ */
+@Service
+public class CartStore implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(CartStore.class);
+
+	public enum Mode {
+		SYNC,
+		WRITE_BEHIND
+	}
+
+	private final CartService cartService;
+	private final CartRepository cartRepository;
+	private final InventoryService inventoryService;
+	private final EntityManagerFactory entityManagerFactory;
+	private final Mode mode;
+	private final int flushBatchSize;
+	private final long idleEvictMillis;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicInteger dirtyCount = new AtomicInteger();
+	// Seeded from the clock so revisions handed out before a restart aren't handed out again for other contents
+	private final AtomicLong revisions = new AtomicLong(System.currentTimeMillis() * 1000);
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	private final ExecutorService flusher;
+	private final LongAdder flushedCarts = new LongAdder();
+	private final LongAdder flushFailures = new LongAdder();
+	private final LongAdder flushConflicts = new LongAdder();
+
+	public CartStore(CartService cartService, CartRepository cartRepository, InventoryService inventoryService,
+			EntityManagerFactory entityManagerFactory,
+			@Value("${cart.store.mode:sync}") String mode,
+			@Value("${cart.store.flush-batch-size:100}") int flushBatchSize,
+			@Value("${cart.store.idle-evict-millis:600000}") long idleEvictMillis) {
+		this.cartService = cartService;
+		this.cartRepository = cartRepository;
+		this.inventoryService = inventoryService;
+		this.entityManagerFactory = entityManagerFactory;
+		this.mode = Mode.valueOf(mode.trim().toUpperCase().replace('-', '_'));
+		this.flushBatchSize = Math.max(1, flushBatchSize);
+		this.idleEvictMillis = idleEvictMillis;
+		this.flusher = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "cart-store-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Applies a change to the cart with the given id. The change must derive everything from the cart it is given,
+	 * as in sync mode it may be retried on a freshly loaded cart.
+	 *
+	 * @return what the change returned, or empty if the cart doesn't exist
+	 * @see CartService#modify
+	 */
+	public <R> Optional<R> modify(long cartId, Function<Cart, R> change) {
+		if (mode == Mode.SYNC) {
+			return cartService.modify(cartId, change);
+		}
+		while (true) {
+			Entry entry = entry(cartId);
+			if (entry == null) {
+				return Optional.empty();
+			}
+			R result;
+			synchronized (entry) {
+				awaitCheckout(entry);
+				if (entry.evicted) {
+					continue;
+				}
+				Cart next = entry.cart.copy();
+				result = change.apply(next);
+				entry.cart = next;
+				entry.modCount++;
+				entry.revision = revisions.incrementAndGet();
+				entry.lastAccess = System.currentTimeMillis();
+				if (entry.dirtySince == 0) {
+					entry.dirtySince = entry.lastAccess;
+					if (dirtyCount.incrementAndGet() >= flushBatchSize) {
+						requestFlush();
+					}
+				}
+			}
+			return Optional.ofNullable(result);
+		}
+	}
+
+	/**
+	 * Returns the current state of a cart, from memory when it is held there, or null if it doesn't exist.
+	 * In sync mode this is always a database read.
+	 */
+	public Cart get(long cartId) {
+		if (mode == Mode.SYNC) {
+			return cartRepository.findWithLinesById(cartId).orElse(null);
+		}
+		Entry entry = entry(cartId);
+		if (entry == null) {
+			return null;
+		}
+		synchronized (entry) {
+			entry.lastAccess = System.currentTimeMillis();
+			return entry.cart;
+		}
+	}
+
+	/**
+	 * Returns a token that changes whenever the contents of the cart do, or null if the cart doesn't exist. In
+	 * sync mode it is the version column, read without loading the cart's lines; in write-behind mode it is
+	 * bumped by every edit held in memory, whether or not it has been flushed yet. Reading the revision before
+	 * the cart itself errs on the side of a revision older than the contents, never newer.
+	 */
+	public String revision(long cartId) {
+		if (mode == Mode.SYNC) {
+			Long version = cartRepository.findVersionById(cartId);
+			return version == null ? null : version.toString();
+		}
+		Entry entry = entry(cartId);
+		if (entry == null) {
+			return null;
+		}
+		synchronized (entry) {
+			entry.lastAccess = System.currentTimeMillis();
+			return Long.toString(entry.revision, 36);
+		}
+	}
+
+	/**
+	 * Writes the cart to the database now if it has unflushed edits, e.g. before an order is placed from it.
+	 */
+	public void flush(long cartId) {
+		Entry entry = entries.get(cartId);
+		if (entry == null || entry.dirtySince == 0) {
+			return;
+		}
+		flushLock.lock();
+		try {
+			List<Entry> batch = new ArrayList<>(1);
+			batch.add(entry);
+			flushBatch(batch);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Places an order from the cart: writes its unflushed edits, runs {@code placeOrder}, which builds the order
+	 * from the database and empties the cart there, and drops the held copy if it returned an order. Edits of
+	 * the cart wait until this returns and then apply to the reloaded cart.
+	 *
+	 * @return what {@code placeOrder} returned
+	 * @throws OptimisticLockingFailureException if the cart was changed outside the store, which drops its
+	 *         unflushed edits; no order is placed
+	 * @throws IllegalStateException if the unflushed edits couldn't be written; no order is placed
+	 */
+	public <R> Optional<R> checkout(long cartId, Supplier<Optional<R>> placeOrder) {
+		if (mode == Mode.SYNC) {
+			return placeOrder.get();
+		}
+		Entry entry = entry(cartId);
+		if (entry == null) {
+			return placeOrder.get();
+		}
+		synchronized (entry) {
+			awaitCheckout(entry);
+			entry.checkingOut = true;
+			entry.lastAccess = System.currentTimeMillis();
+		}
+		try {
+			flush(cartId);
+			if (entry.evicted) {
+				throw new OptimisticLockingFailureException("Cart " + cartId + " was changed outside the cart store");
+			}
+			if (entry.dirtySince != 0) {
+				throw new IllegalStateException("Cart " + cartId + " could not be written before checkout");
+			}
+			Optional<R> order = placeOrder.get();
+			if (order.isPresent()) {
+				evict(entry);
+			}
+			return order;
+		} finally {
+			synchronized (entry) {
+				entry.checkingOut = false;
+				entry.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Whether the cart is currently held in memory, which means it has been used recently.
+	 */
+	public boolean isHeld(long cartId) {
+		return entries.containsKey(cartId);
+	}
+
+	/**
+	 * Ids of the carts held in memory whose current state matches the filter, which must not change the cart.
+	 */
+	public List<Long> heldIds(Predicate<Cart> filter) {
+		List<Long> ids = new ArrayList<>();
+		for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+			if (filter.test(entry.getValue().cart)) {
+				ids.add(entry.getKey());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Drops the held copy of a cart that was changed directly in the database so its next use reloads it. Edits
+	 * of the cart not yet flushed are dropped with it, and the stock they reserved is released.
+	 */
+	public void invalidate(long cartId) {
+		Entry entry = entries.get(cartId);
+		if (entry != null) {
+			evict(entry);
+		}
+	}
+
+	/**
+	 * Writes every dirty cart back in batches and drops clean carts that haven't been used for a while.
+	 */
+	@Scheduled(initialDelayString = "${cart.store.flush-interval-millis:1000}",
+			fixedDelayString = "${cart.store.flush-interval-millis:1000}")
+	public void flushAll() {
+		if (mode == Mode.SYNC) {
+			return;
+		}
+		flushRequested.set(false);
+		flushLock.lock();
+		try {
+			List<Entry> batch = new ArrayList<>(flushBatchSize);
+			for (Entry entry : entries.values()) {
+				if (entry.dirtySince == 0) {
+					continue;
+				}
+				batch.add(entry);
+				if (batch.size() == flushBatchSize) {
+					flushBatch(batch);
+					batch = new ArrayList<>(flushBatchSize);
+				}
+			}
+			if (!batch.isEmpty()) {
+				flushBatch(batch);
+			}
+			evictIdle();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushAll();
+		if (dirtyCount.get() > 0) {
+			log.error("{} carts still had unflushed edits at shutdown", dirtyCount.get());
+		}
+	}
+
+	private void requestFlush() {
+		if (flushRequested.compareAndSet(false, true)) {
+			try {
+				flusher.execute(this::flushAll);
+			} catch (RuntimeException e) {
+				// Shutting down, the final flush picks the carts up
+				flushRequested.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Waits, holding the entry's monitor, until no order is being placed from the cart.
+	 */
+	private static void awaitCheckout(Entry entry) {
+		boolean interrupted = false;
+		while (entry.checkingOut) {
+			try {
+				entry.wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Entry entry(long cartId) {
+		Entry entry = entries.get(cartId);
+		if (entry != null) {
+			return entry;
+		}
+		Cart cart = load(cartId);
+		if (cart == null) {
+			return null;
+		}
+		Entry loaded = new Entry(cart, revisions.incrementAndGet());
+		Entry existing = entries.putIfAbsent(cartId, loaded);
+		return existing != null ? existing : loaded;
+	}
+
+	/**
+	 * Loads a cart and its lines into a detached copy, using an entity manager of its own so the cart never
+	 * joins the persistence context of the request that happens to trigger the load.
+	 */
+	private Cart load(long cartId) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			Cart cart = entityManager.find(Cart.class, cartId, Collections.singletonMap(
+					"javax.persistence.fetchgraph", entityManager.getEntityGraph(Cart.WITH_LINES)));
+			return cart == null ? null : cart.copy();
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Merges the current state of each cart in one transaction. If the batch fails, each cart is retried on its
+	 * own so one bad cart can't hold the others back.
+	 */
+	private void flushBatch(List<Entry> batch) {
+		Map<Entry, Snapshot> snapshots = new HashMap<>();
+		for (Entry entry : batch) {
+			synchronized (entry) {
+				snapshots.put(entry, new Snapshot(entry.cart, entry.modCount));
+			}
+		}
+		try {
+			Map<Entry, Cart> merged = merge(snapshots);
+			merged.forEach((entry, cart) -> markFlushed(entry, snapshots.get(entry), cart));
+			flushedCarts.add(merged.size());
+		} catch (RuntimeException e) {
+			if (batch.size() > 1) {
+				log.warn("Flushing a batch of {} carts failed, flushing them one by one", batch.size(), e);
+				for (Entry entry : batch) {
+					flushBatch(Collections.singletonList(entry));
+				}
+				return;
+			}
+			Entry entry = batch.get(0);
+			if (isConflict(e)) {
+				// The row changed underneath us, so the held copy can't be written; reload it on next use
+				flushConflicts.increment();
+				log.error("Cart {} was changed outside the cart store, discarding its unflushed edits and their stock",
+						entry.cart.getId(), e);
+				evict(entry);
+			} else {
+				flushFailures.increment();
+				log.error("Flushing cart {} failed, will retry", entry.cart.getId(), e);
+			}
+		}
+	}
+
+	private Map<Entry, Cart> merge(Map<Entry, Snapshot> snapshots) {
+		EntityManager entityManager = entityManagerFactory.createEntityManager();
+		EntityTransaction transaction = entityManager.getTransaction();
+		try {
+			transaction.begin();
+			Map<Entry, Cart> merged = new HashMap<>();
+			snapshots.forEach((entry, snapshot) -> merged.put(entry, entityManager.merge(snapshot.cart.copy())));
+			transaction.commit();
+			return merged;
+		} catch (RuntimeException e) {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			throw e;
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Carries the new version and generated line ids over to the held cart, and marks it clean unless it was
+	 * edited again while the flush ran.
+	 */
+	private void markFlushed(Entry entry, Snapshot snapshot, Cart merged) {
+		synchronized (entry) {
+			Cart current = entry.cart;
+			current.setVersion(merged.getVersion());
+			entry.flushed = quantities(snapshot.cart);
+			for (Map.Entry<Long, CartLine> line : merged.getLines().entrySet()) {
+				CartLine held = current.getLine(line.getKey());
+				if (held != null && held.getId() == null) {
+					held.setId(line.getValue().getId());
+				}
+			}
+			if (entry.modCount == snapshot.modCount && entry.dirtySince != 0) {
+				entry.dirtySince = 0;
+				dirtyCount.decrementAndGet();
+			}
+		}
+	}
+
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleEvictMillis;
+		for (Entry entry : entries.values()) {
+			if (entry.dirtySince == 0 && entry.lastAccess < cutoff) {
+				synchronized (entry) {
+					if (entry.dirtySince == 0 && entry.lastAccess < cutoff && !entry.checkingOut) {
+						evict(entry);
+					}
+				}
+			}
+		}
+	}
+
+	private void evict(Entry entry) {
+		synchronized (entry) {
+			if (entry.evicted) {
+				return;
+			}
+			entry.evicted = true;
+			if (entry.dirtySince != 0) {
+				entry.dirtySince = 0;
+				dirtyCount.decrementAndGet();
+				releaseUnflushed(entry);
+			}
+			entries.remove(entry.cart.getId(), entry);
+		}
+	}
+
+	/**
+	 * Undoes the stock bookkeeping of edits that are being dropped: units added since the last flush were
+	 * reserved and go back, units removed since were released while the database cart still holds them, so
+	 * they are reserved again.
+	 */
+	private void releaseUnflushed(Entry entry) {
+		Map<Long, Integer> held = quantities(entry.cart);
+		for (Map.Entry<Long, Integer> line : held.entrySet()) {
+			int added = line.getValue() - entry.flushed.getOrDefault(line.getKey(), 0);
+			if (added > 0) {
+				inventoryService.release(line.getKey(), added);
+			}
+		}
+		for (Map.Entry<Long, Integer> line : entry.flushed.entrySet()) {
+			int removed = line.getValue() - held.getOrDefault(line.getKey(), 0);
+			if (removed > 0 && !inventoryService.reserve(line.getKey(), removed)) {
+				log.warn("Could not reserve {} units of item {} still in cart {} again", removed, line.getKey(),
+						entry.cart.getId());
+			}
+		}
+	}
+
+	private static Map<Long, Integer> quantities(Cart cart) {
+		Map<Long, Integer> quantities = new HashMap<>();
+		for (Map.Entry<Long, CartLine> line : cart.getLines().entrySet()) {
+			quantities.put(line.getKey(), line.getValue().getQuantity());
+		}
+		return quantities;
+	}
+
+	private static boolean isConflict(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof OptimisticLockException || cause instanceof StaleStateException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long oldestDirtyAgeMillis() {
+		long oldest = 0;
+		for (Entry entry : entries.values()) {
+			long since = entry.dirtySince;
+			if (since != 0 && (oldest == 0 || since < oldest)) {
+				oldest = since;
+			}
+		}
+		return oldest == 0 ? 0 : System.currentTimeMillis() - oldest;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("cart.store.size", entries, Map::size).register(registry);
+		Gauge.builder("cart.store.dirty", dirtyCount, AtomicInteger::get).register(registry);
+		TimeGauge.builder("cart.store.flush.lag", this, TimeUnit.MILLISECONDS, CartStore::oldestDirtyAgeMillis)
+				.description("Age of the oldest cart edit not yet written to the database")
+				.register(registry);
+		FunctionCounter.builder("cart.store.flushed", flushedCarts, LongAdder::sum).register(registry);
+		FunctionCounter.builder("cart.store.flush.failures", flushFailures, LongAdder::sum).register(registry);
+		FunctionCounter.builder("cart.store.flush.conflicts", flushConflicts, LongAdder::sum).register(registry);
+	}
+
+	private static final class Entry {
+		private volatile Cart cart;
+		// Line quantities as of the last load or flush, i.e. what the database holds
+		private Map<Long, Integer> flushed;
+		private long modCount;
+		private long revision;
+		private volatile long dirtySince;
+		private volatile long lastAccess;
+		private boolean evicted;
+		private boolean checkingOut;
+
+		private Entry(Cart cart, long revision) {
+			this.cart = cart;
+			this.flushed = quantities(cart);
+			this.revision = revision;
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	private static final class Snapshot {
+		private final Cart cart;
+		private final long modCount;
+
+		private Snapshot(Cart cart, long modCount) {
+			this.cart = cart;
+			this.modCount = modCount;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.example.demo.service;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Empties carts nobody has touched for longer than an idle TTL, so abandoned carts don't keep their lines in the
+ * cart tables forever. Candidates are read with a keyset cursor over (last_modified, id), which the cart index
+ * covers, and each batch is cleared in its own short transaction that checks the cart is still idle, so a run
+ * never locks more than one batch of rows at a time. Carts the cart store holds in memory are in use and are
+ * skipped; a cart edited in the moment between that check and its batch committing loses the edit. Stock
+ * reserved by the lines deleted is released once their batch has committed.
+ */
+@Service
+public class CartSweeper implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(CartSweeper.class);
+
+	private static final String SELECT_IDLE = "select c.id, c.last_modified from cart c"
+			+ " where c.last_modified < ? and (c.last_modified > ? or (c.last_modified = ? and c.id > ?))"
+			+ " and exists (select 1 from cart_line l where l.cart_id = c.id)"
+			+ " order by c.last_modified, c.id limit ?";
+	private static final String CLEAR_CART = "update cart set total = 0, version = version + 1, last_modified = ?"
+			+ " where id = ? and last_modified < ?";
+	private static final String DELETE_LINES = "delete from cart_line where cart_id = ?";
+	private static final String SELECT_UNITS = "select item_id, sum(quantity) from cart_line where cart_id in (%s)"
+			+ " group by item_id";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final CartStore cartStore;
+	private final InventoryService inventoryService;
+	private final long idleTtlMillis;
+	private final int batchSize;
+	private final int maxBatches;
+	private final LongAdder cartsCleared = new LongAdder();
+	private final LongAdder linesReclaimed = new LongAdder();
+	private final AtomicLong lastRunLinesReclaimed = new AtomicLong();
+
+	public CartSweeper(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, CartStore cartStore,
+			InventoryService inventoryService,
+			@Value("${cart.sweeper.idle-ttl-millis:604800000}") long idleTtlMillis,
+			@Value("${cart.sweeper.batch-size:500}") int batchSize,
+			@Value("${cart.sweeper.max-batches:200}") int maxBatches) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.cartStore = cartStore;
+		this.inventoryService = inventoryService;
+		this.idleTtlMillis = idleTtlMillis;
+		this.batchSize = Math.max(1, batchSize);
+		this.maxBatches = Math.max(1, maxBatches);
+	}
+
+	/**
+	 * Clears up to max-batches batches of idle carts, returning the number of cart lines deleted.
+	 */
+	@Scheduled(initialDelayString = "${cart.sweeper.interval-millis:3600000}",
+			fixedDelayString = "${cart.sweeper.interval-millis:3600000}")
+	public long sweep() {
+		if (idleTtlMillis <= 0) {
+			return 0;
+		}
+		Timestamp cutoff = new Timestamp(System.currentTimeMillis() - idleTtlMillis);
+		Timestamp afterModified = new Timestamp(0);
+		long afterId = 0;
+		int carts = 0;
+		long lines = 0;
+		for (int batch = 0; batch < maxBatches; batch++) {
+			List<Candidate> page = jdbcTemplate.query(SELECT_IDLE,
+					(rs, row) -> new Candidate(rs.getLong(1), rs.getTimestamp(2)),
+					cutoff, afterModified, afterModified, afterId, batchSize);
+			if (page.isEmpty()) {
+				break;
+			}
+			Candidate last = page.get(page.size() - 1);
+			afterModified = last.lastModified;
+			afterId = last.id;
+
+			List<Long> ids = new ArrayList<>(page.size());
+			for (Candidate candidate : page) {
+				if (!cartStore.isHeld(candidate.id)) {
+					ids.add(candidate.id);
+				}
+			}
+			if (!ids.isEmpty()) {
+				List<Long> cleared = new ArrayList<>(ids.size());
+				Map<Long, Long> units = new HashMap<>();
+				lines += clear(ids, cutoff, cleared, units);
+				carts += cleared.size();
+				cleared.forEach(cartStore::invalidate);
+				units.forEach(inventoryService::release);
+			}
+			if (page.size() < batchSize) {
+				break;
+			}
+		}
+		cartsCleared.add(carts);
+		linesReclaimed.add(lines);
+		lastRunLinesReclaimed.set(lines);
+		if (carts > 0) {
+			log.info("Cleared {} carts idle since before {}, {} cart lines reclaimed", carts, cutoff, lines);
+		}
+		return lines;
+	}
+
+	/**
+	 * Empties the carts that are still idle in one transaction, adding their ids to cleared and the units deleted
+	 * per item to units, and returning the number of lines deleted.
+	 */
+	private long clear(List<Long> ids, Timestamp cutoff, List<Long> cleared, Map<Long, Long> units) {
+		return transactionTemplate.execute(status -> {
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			List<Object[]> carts = new ArrayList<>(ids.size());
+			for (Long id : ids) {
+				carts.add(new Object[] {now, id, cutoff});
+			}
+			int[] updated = jdbcTemplate.batchUpdate(CLEAR_CART, carts);
+			List<Object[]> lines = new ArrayList<>(ids.size());
+			for (int i = 0; i < updated.length; i++) {
+				if (updated[i] > 0) {
+					cleared.add(ids.get(i));
+					lines.add(new Object[] {ids.get(i)});
+				}
+			}
+			if (cleared.isEmpty()) {
+				return 0L;
+			}
+			jdbcTemplate.query(String.format(SELECT_UNITS, String.join(",", Collections.nCopies(cleared.size(), "?"))),
+					rs -> {
+						units.put(rs.getLong(1), rs.getLong(2));
+					}, cleared.toArray());
+			long deleted = 0;
+			for (int count : jdbcTemplate.batchUpdate(DELETE_LINES, lines)) {
+				deleted += Math.max(0, count);
+			}
+			return deleted;
+		});
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("cart.sweeper.carts.cleared", cartsCleared, LongAdder::sum).register(registry);
+		FunctionCounter.builder("cart.sweeper.lines.reclaimed", linesReclaimed, LongAdder::sum).register(registry);
+		Gauge.builder("cart.sweeper.last-run.lines.reclaimed", lastRunLinesReclaimed, AtomicLong::get)
+				.description("Cart lines deleted by the most recent sweep")
+				.register(registry);
+	}
+
+	private static final class Candidate {
+		private final long id;
+		private final Timestamp lastModified;
+
+		private Candidate(long id, Timestamp lastModified) {
+			this.id = id;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.example.demo.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.example.demo.util.StripedCounter;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Stock levels for items with an item_stock row. Putting units in a cart reserves them against an in-memory
+ * striped counter of units still available, so a hot item takes no row lock and no single contended word;
+ * removing them (or the sweeper emptying the cart) releases them, and placing the order commits them by taking
+ * them out of the table in the order's transaction. At startup, units already in carts count as reserved.
+ *
+ * <p>The table stays authoritative for what is left to sell: it is reconciled periodically so stock changed
+ * there directly, e.g. a restock, reaches the counters. A reconcile that reads the table between an order's
+ * commit and its bookkeeping briefly undercounts that item, and the next one corrects it.
+ */
+@Service
+public class InventoryService implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(InventoryService.class);
+
+	private static final String SELECT_STOCK = "select item_id, quantity from item_stock";
+	private static final String SELECT_IN_CARTS = "select item_id, sum(quantity) from cart_line group by item_id";
+	private static final String COMMIT = "update item_stock set quantity = quantity - ? where item_id = ? and quantity >= ?";
+	private static final String PUT_BACK = "update item_stock set quantity = quantity + ? where item_id = ?";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final ConcurrentHashMap<Long, Stock> stocks = new ConcurrentHashMap<>();
+	private final LongAdder reserved = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder committed = new LongAdder();
+
+	public InventoryService(JdbcTemplate jdbcTemplate) {
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	// Not @PostConstruct: the stock table is only created and seeded once the persistence unit is up
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		reconcile();
+	}
+
+	/**
+	 * Reserves units of an item for a cart, returning false if not enough are available. Items that aren't
+	 * stock-managed always succeed.
+	 */
+	public boolean reserve(long itemId, long quantity) {
+		Stock stock = stocks.get(itemId);
+		if (stock == null || quantity <= 0) {
+			return true;
+		}
+		if (!stock.available.tryTake(quantity)) {
+			rejected.increment();
+			return false;
+		}
+		reserved.add(quantity);
+		return true;
+	}
+
+	/**
+	 * Returns reserved units of an item, e.g. when they are taken out of a cart.
+	 */
+	public void release(long itemId, long quantity) {
+		Stock stock = stocks.get(itemId);
+		if (stock == null || quantity <= 0) {
+			return;
+		}
+		stock.available.add(quantity);
+	}
+
+	/**
+	 * Starts tracking the reservations made by one cart edit.
+	 */
+	public StockReservations reservations() {
+		return new StockReservations(this);
+	}
+
+	/**
+	 * Units of an item that can still be reserved, or -1 if it isn't stock-managed.
+	 */
+	public long available(long itemId) {
+		Stock stock = stocks.get(itemId);
+		return stock == null ? -1 : stock.available.sum();
+	}
+
+	/**
+	 * Takes the reserved units of an order out of the stock table. Has to run inside the transaction that places
+	 * the order, which it rolls back with an {@link OutOfStockException} if the table no longer holds enough of
+	 * an item; the reservations are only let go once that transaction commits.
+	 */
+	public void commit(Map<Long, Integer> quantities) {
+		Long missing = tryCommit(quantities);
+		if (missing != null) {
+			throw new OutOfStockException(missing);
+		}
+	}
+
+	/**
+	 * Same as {@link #commit} but for transactions placing several orders: if the table no longer holds enough
+	 * of an item, the units this call already took are put back and the item's id is returned, leaving the
+	 * transaction usable for the other orders. Returns null when everything was taken.
+	 */
+	public Long tryCommit(Map<Long, Integer> quantities) {
+		Map<Stock, Integer> taken = new HashMap<>();
+		Map<Long, Integer> takenById = new HashMap<>();
+		for (Map.Entry<Long, Integer> line : quantities.entrySet()) {
+			Stock stock = stocks.get(line.getKey());
+			int quantity = line.getValue();
+			if (stock == null || quantity <= 0) {
+				continue;
+			}
+			if (jdbcTemplate.update(COMMIT, quantity, line.getKey(), quantity) == 0) {
+				takenById.forEach((itemId, units) -> jdbcTemplate.update(PUT_BACK, units, itemId));
+				return line.getKey();
+			}
+			taken.put(stock, quantity);
+			takenById.put(line.getKey(), quantity);
+		}
+		if (taken.isEmpty()) {
+			return null;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				taken.forEach((stock, quantity) -> {
+					stock.known.addAndGet(-quantity);
+					committed.add(quantity);
+				});
+			}
+		});
+		return null;
+	}
+
+	/**
+	 * Brings the counters in line with the stock table: changes made to a row since it was last read are
+	 * applied to the units available, new rows start being tracked and deleted ones stop.
+	 */
+	@Scheduled(initialDelayString = "${inventory.reconcile-interval-millis:30000}",
+			fixedDelayString = "${inventory.reconcile-interval-millis:30000}")
+	public synchronized void reconcile() {
+		Map<Long, Long> table = new HashMap<>();
+		jdbcTemplate.query(SELECT_STOCK, rs -> {
+			table.put(rs.getLong(1), rs.getLong(2));
+		});
+		Map<Long, Long> inCarts = null;
+		for (Map.Entry<Long, Long> row : table.entrySet()) {
+			Stock stock = stocks.get(row.getKey());
+			if (stock == null) {
+				if (inCarts == null) {
+					inCarts = unitsInCarts();
+				}
+				stocks.put(row.getKey(), new Stock(row.getValue(), inCarts.getOrDefault(row.getKey(), 0L)));
+				continue;
+			}
+			long delta = row.getValue() - stock.known.getAndSet(row.getValue());
+			if (delta > 0) {
+				stock.available.add(delta);
+			} else if (delta < 0) {
+				stock.available.reduce(-delta);
+			}
+			if (delta != 0) {
+				log.info("Stock of item {} changed by {} outside of orders", row.getKey(), delta);
+			}
+		}
+		stocks.keySet().retainAll(table.keySet());
+	}
+
+	private Map<Long, Long> unitsInCarts() {
+		Map<Long, Long> units = new HashMap<>();
+		jdbcTemplate.query(SELECT_IN_CARTS, rs -> {
+			units.put(rs.getLong(1), rs.getLong(2));
+		});
+		return units;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("inventory.items", stocks, Map::size)
+				.description("Items whose stock is managed")
+				.register(registry);
+		FunctionCounter.builder("inventory.reserved", reserved, LongAdder::sum).register(registry);
+		FunctionCounter.builder("inventory.reservations.rejected", rejected, LongAdder::sum).register(registry);
+		FunctionCounter.builder("inventory.committed", committed, LongAdder::sum).register(registry);
+	}
+
+	private static final class Stock {
+		// Units left in the table as of the last reconcile, less those committed since
+		private final AtomicLong known;
+		private final StripedCounter available;
+
+		private Stock(long quantity, long inCarts) {
+			this.known = new AtomicLong(quantity);
+			this.available = new StripedCounter(Math.max(0, quantity - inCarts));
+			if (inCarts > quantity) {
+				available.reduce(inCarts - quantity);
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.OrderLine;
+import com.example.demo.model.persistence.User;
+import com.example.demo.model.persistence.UserOrder;
+import com.example.demo.model.persistence.repositories.OrderRepository;
+import com.example.demo.model.responses.OrderHistoryPage;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Reads a user's order history without holding all of it at once. Pages are cut by a keyset on the order id,
+ * one query for the ids and one for those orders with their lines. The stream reads orders and their lines
+ * from a single JDBC cursor ordered by order id and writes each order as a line of JSON as soon as its last row
+ * has been read, so only one order is ever in memory however long the history is.
+ */
+@Service
+public class OrderHistoryService {
+
+	// Walks the (user_id, id) index of user_order and the order_id index of user_order_line, no catalog join
+	private static final String SELECT_ORDERS = "select o.id, o.total, l.item_id, l.name, l.unit_price, l.quantity"
+			+ " from user_order o left join user_order_line l on l.order_id = o.id where o.user_id = ? order by o.id";
+
+	private final OrderRepository orderRepository;
+	private final JdbcTemplate cursorTemplate;
+	private final ObjectWriter orderWriter;
+	private final int defaultPageSize;
+	private final int maxPageSize;
+
+	public OrderHistoryService(OrderRepository orderRepository, DataSource dataSource, ObjectMapper objectMapper,
+			@Value("${order.history.page-size:50}") int defaultPageSize,
+			@Value("${order.history.max-page-size:500}") int maxPageSize,
+			@Value("${order.history.stream-fetch-size:500}") int streamFetchSize) {
+		this.orderRepository = orderRepository;
+		// Own template so the fetch size only applies to the cursor, not to every query of the shared one
+		this.cursorTemplate = new JdbcTemplate(dataSource);
+		this.cursorTemplate.setFetchSize(streamFetchSize);
+		this.orderWriter = objectMapper.writerFor(UserOrder.class);
+		this.maxPageSize = Math.max(1, maxPageSize);
+		this.defaultPageSize = Math.min(Math.max(1, defaultPageSize), this.maxPageSize);
+	}
+
+	/**
+	 * Returns the user's orders with an id above after, oldest first, at most size of them (the default page
+	 * size if null, capped at the maximum).
+	 */
+	public OrderHistoryPage page(long userId, long after, Integer size) {
+		int pageSize = size == null || size <= 0 ? defaultPageSize : Math.min(size, maxPageSize);
+		// One id more than the page holds tells whether there is a next page without counting
+		List<Long> ids = orderRepository.findIdsByUserIdAfter(userId, after, PageRequest.of(0, pageSize + 1));
+		if (ids.isEmpty()) {
+			return new OrderHistoryPage(Collections.emptyList(), null);
+		}
+		Long next = null;
+		if (ids.size() > pageSize) {
+			ids = ids.subList(0, pageSize);
+			next = ids.get(pageSize - 1);
+		}
+		return new OrderHistoryPage(orderRepository.findWithLinesByIdIn(ids), next);
+	}
+
+	/**
+	 * Writes every order of the user to out as newline delimited JSON, oldest first, in the same shape the
+	 * order endpoints return them.
+	 */
+	public void stream(User user, OutputStream out) throws IOException {
+		JsonGenerator generator = orderWriter.getFactory().createGenerator(out);
+		// Lines are ended explicitly, so no separator of Jackson's own between root values
+		generator.setRootValueSeparator(null);
+		OrderRows rows = new OrderRows(user, generator);
+		try {
+			cursorTemplate.query(SELECT_ORDERS, rows::add, user.getId());
+			rows.finish();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		generator.flush();
+	}
+
+	/**
+	 * Groups the cursor's rows into orders, writing each one out when the rows move on to the next.
+	 */
+	private final class OrderRows {
+		private final User user;
+		private final JsonGenerator generator;
+		private UserOrder order;
+		private List<OrderLine> lines;
+
+		private OrderRows(User user, JsonGenerator generator) {
+			this.user = user;
+			this.generator = generator;
+		}
+
+		private void add(ResultSet rs) throws SQLException {
+			long orderId = rs.getLong(1);
+			if (order == null || order.getId() != orderId) {
+				finish();
+				order = new UserOrder();
+				order.setId(orderId);
+				long total = rs.getLong(2);
+				order.setTotal(rs.wasNull() ? null : Money.ofMinor(total));
+				order.setUser(user);
+				lines = new ArrayList<>();
+				order.setLines(lines);
+			}
+			long itemId = rs.getLong(3);
+			if (!rs.wasNull()) {
+				lines.add(new OrderLine(itemId, rs.getString(4), Money.ofMinor(rs.getLong(5)), rs.getInt(6)));
+			}
+		}
+
+		private void finish() {
+			if (order == null) {
+				return;
+			}
+			try {
+				orderWriter.writeValue(generator, order);
+				generator.writeRaw('\n');
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			order = null;
+		}
+	}
+}
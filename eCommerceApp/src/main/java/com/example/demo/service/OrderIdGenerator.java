@@ -0,0 +1,39 @@
+package com.example.demo.service;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.model.persistence.UserOrder;
+
+/**
+ * Hands out order ids ahead of the insert, from the same sequence and in-memory id block Hibernate uses when
+ * it saves an order itself, so ids handed out here and ids Hibernate assigns never collide. Only every block's
+ * first id goes to the database.
+ */
+@Service
+public class OrderIdGenerator {
+
+	private final EntityManagerFactory entityManagerFactory;
+	private volatile SessionFactoryImplementor sessionFactory;
+	private volatile IdentifierGenerator generator;
+
+	public OrderIdGenerator(EntityManagerFactory entityManagerFactory) {
+		this.entityManagerFactory = entityManagerFactory;
+	}
+
+	public long next() {
+		if (generator == null) {
+			sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+			generator = sessionFactory.getMetamodel().entityPersister(UserOrder.class).getIdentifierGenerator();
+		}
+		// The session is only used to reach the database when the current block runs out
+		try (StatelessSession session = sessionFactory.openStatelessSession()) {
+			return ((Number) generator.generate((SharedSessionContractImplementor) session, null)).longValue();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.demo.model.persistence.OrderLine;
+import com.example.demo.model.responses.OrderStatusResponse.Status;
+import com.example.demo.util.ExpiringCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Bounded in-process queue of accepted orders, drained by a single writer thread that inserts up to batch-size
+ * orders and their lines with batched JDBC statements in one transaction, taking their stock in the same
+ * transaction. If a batch fails it is written again one order at a time so one bad order can't sink the rest.
+ * An order whose stock is gone from the table by the time it is written fails, and its reservations are
+ * released. A place in the queue is claimed before the cart is emptied, so a full queue turns submissions away
+ * without touching the cart.
+ *
+ * <p>Shutdown stops accepting and waits for the queue to drain. Orders still queued when the process dies are
+ * lost, which is the durability traded for answering before the order is written.
+ */
+@Service
+public class OrderQueue implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(OrderQueue.class);
+
+	private static final String INSERT_ORDER = "insert into user_order (id, total, user_id) values (?, ?, ?)";
+	private static final String INSERT_LINE = "insert into user_order_line (order_id, item_id, name, unit_price, quantity)"
+			+ " values (?, ?, ?, ?, ?)";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final InventoryService inventoryService;
+	private final OrderStatsService orderStatsService;
+	private final int batchSize;
+	private final long failedTtlMillis;
+	private final long shutdownTimeoutMillis;
+	private final BlockingQueue<QueuedOrder> queue = new LinkedBlockingQueue<>();
+	private final Semaphore places;
+	// Accepted orders until they are written, for status lookups
+	private final ConcurrentHashMap<Long, QueuedOrder> pending = new ConcurrentHashMap<>();
+	private final ExpiringCache<Long, QueuedOrder> failed;
+	private final ExecutorService writer;
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private volatile boolean closed;
+
+	public OrderQueue(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+			InventoryService inventoryService, OrderStatsService orderStatsService,
+			@Value("${order.queue.capacity:10000}") int capacity,
+			@Value("${order.queue.batch-size:200}") int batchSize,
+			@Value("${order.queue.failed-ttl-millis:86400000}") long failedTtlMillis,
+			@Value("${order.queue.shutdown-timeout-millis:30000}") long shutdownTimeoutMillis) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.inventoryService = inventoryService;
+		this.orderStatsService = orderStatsService;
+		this.places = new Semaphore(Math.max(1, capacity));
+		this.batchSize = Math.max(1, batchSize);
+		this.failedTtlMillis = failedTtlMillis;
+		this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+		this.failed = new ExpiringCache<>(Math.max(1, capacity));
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "order-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		writer.execute(this::drain);
+	}
+
+	/**
+	 * Claims a place in the queue, returning false if it is full or shutting down. A claimed place must be
+	 * either filled with {@link #enqueue} or given back with {@link #release}.
+	 */
+	public boolean claim() {
+		if (closed || !places.tryAcquire()) {
+			rejected.increment();
+			return false;
+		}
+		return true;
+	}
+
+	public void release() {
+		places.release();
+	}
+
+	/**
+	 * Queues an order for writing into a place claimed before.
+	 */
+	public void enqueue(QueuedOrder order) {
+		pending.put(order.getId(), order);
+		queue.add(order);
+		accepted.increment();
+	}
+
+	/**
+	 * Status of an order of the user that is queued or has failed, or null if this queue knows of no such order,
+	 * e.g. because it has been written.
+	 */
+	public Status status(long orderId, long userId) {
+		QueuedOrder order = pending.get(orderId);
+		if (order != null) {
+			return order.getUserId() == userId ? Status.QUEUED : null;
+		}
+		order = failed.get(orderId);
+		if (order != null) {
+			return order.getUserId() == userId ? Status.FAILED : null;
+		}
+		return null;
+	}
+
+	private void drain() {
+		List<QueuedOrder> batch = new ArrayList<>(batchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				QueuedOrder first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				write(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				log.error("Order writer failed", e);
+			} finally {
+				places.release(batch.size());
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<QueuedOrder> batch) {
+		try {
+			finish(batch, transactionTemplate.execute(status -> insert(batch)));
+			return;
+		} catch (RuntimeException e) {
+			log.error("Writing a batch of {} orders failed, writing them one at a time", batch.size(), e);
+		}
+		for (QueuedOrder order : batch) {
+			List<QueuedOrder> single = Collections.singletonList(order);
+			try {
+				finish(single, transactionTemplate.execute(status -> insert(single)));
+			} catch (RuntimeException e) {
+				log.error("Writing order {} failed", order.getId(), e);
+				fail(order);
+			}
+		}
+	}
+
+	/**
+	 * Inserts the orders whose stock can still be taken, returning those whose stock can't.
+	 */
+	private List<QueuedOrder> insert(List<QueuedOrder> batch) {
+		List<QueuedOrder> outOfStock = new ArrayList<>();
+		List<Object[]> orders = new ArrayList<>(batch.size());
+		List<Object[]> lines = new ArrayList<>();
+		List<QueuedOrder> written = new ArrayList<>(batch.size());
+		for (QueuedOrder order : batch) {
+			Long missing = inventoryService.tryCommit(order.getQuantities());
+			if (missing != null) {
+				log.error("Not enough of item {} left to write order {}", missing, order.getId());
+				outOfStock.add(order);
+				continue;
+			}
+			written.add(order);
+			orders.add(new Object[] {order.getId(), order.getTotal().getMinorUnits(), order.getUserId()});
+			for (OrderLine line : order.getLines()) {
+				lines.add(new Object[] {order.getId(), line.getItemId(), line.getName(),
+						line.getUnitPrice().getMinorUnits(), line.getQuantity()});
+			}
+		}
+		if (!orders.isEmpty()) {
+			jdbcTemplate.batchUpdate(INSERT_ORDER, orders);
+		}
+		if (!lines.isEmpty()) {
+			jdbcTemplate.batchUpdate(INSERT_LINE, lines);
+		}
+		orderStatsService.record(written);
+		return outOfStock;
+	}
+
+	private void finish(List<QueuedOrder> batch, List<QueuedOrder> outOfStock) {
+		for (QueuedOrder order : batch) {
+			if (outOfStock.contains(order)) {
+				fail(order);
+			} else {
+				pending.remove(order.getId());
+				written.increment();
+			}
+		}
+	}
+
+	private void fail(QueuedOrder order) {
+		failed.put(order.getId(), order, System.currentTimeMillis() + failedTtlMillis);
+		pending.remove(order.getId());
+		order.getQuantities().forEach(inventoryService::release);
+		failures.increment();
+	}
+
+	private double oldestQueuedAgeMillis() {
+		QueuedOrder oldest = queue.peek();
+		return oldest == null ? 0 : System.currentTimeMillis() - oldest.getQueuedAt();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		closed = true;
+		writer.shutdown();
+		try {
+			if (writer.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				// Orders queued by submissions that claimed their place just before the queue closed
+				List<QueuedOrder> rest = new ArrayList<>();
+				queue.drainTo(rest);
+				if (!rest.isEmpty()) {
+					write(rest);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!pending.isEmpty()) {
+			log.error("{} accepted orders were still unwritten at shutdown", pending.size());
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("order.queue.size", queue, BlockingQueue::size).register(registry);
+		TimeGauge.builder("order.queue.lag", this, TimeUnit.MILLISECONDS, OrderQueue::oldestQueuedAgeMillis)
+				.description("Age of the oldest accepted order not yet written")
+				.register(registry);
+		FunctionCounter.builder("order.queue.accepted", accepted, LongAdder::sum).register(registry);
+		FunctionCounter.builder("order.queue.rejected", rejected, LongAdder::sum).register(registry);
+		FunctionCounter.builder("order.queue.written", written, LongAdder::sum).register(registry);
+		FunctionCounter.builder("order.queue.failures", failures, LongAdder::sum).register(registry);
+	}
+}
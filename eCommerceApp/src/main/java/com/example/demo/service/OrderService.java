@@ -0,0 +1,222 @@
+package com.example.demo.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.CartLine;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.UserOrder;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import com.example.demo.model.persistence.repositories.OrderRepository;
+import com.example.demo.model.responses.OrderStatusResponse.Status;
+
+/**
+ * Places orders from carts at the items' current prices. The order is saved, the stock it reserved is taken out
+ * of the stock table and the cart is emptied in one transaction, so either all of it happens or none of it does;
+ * the cart's version column makes the transaction fail if the cart was edited after it was read.
+ *
+ * <p>In async mode orders are instead accepted into the {@link OrderQueue}: the cart is emptied and the order
+ * gets its id straight away, and the order is written (and its stock taken) by the queue's writer shortly after.
+ */
+@Service
+public class OrderService {
+
+	private final CartRepository cartRepository;
+	private final OrderRepository orderRepository;
+	private final CartStore cartStore;
+	private final InventoryService inventoryService;
+	private final ItemRepository itemRepository;
+	private final OrderQueue orderQueue;
+	private final OrderIdGenerator orderIdGenerator;
+	private final OrderStatsService orderStatsService;
+	private final SubmissionKeyService submissionKeyService;
+	private final TransactionTemplate transactionTemplate;
+	private final boolean async;
+
+	public OrderService(CartRepository cartRepository, OrderRepository orderRepository, CartStore cartStore,
+			InventoryService inventoryService, ItemRepository itemRepository, OrderQueue orderQueue,
+			OrderIdGenerator orderIdGenerator, OrderStatsService orderStatsService,
+			SubmissionKeyService submissionKeyService, PlatformTransactionManager transactionManager,
+			@Value("${order.submit.mode:sync}") String mode) {
+		this.cartRepository = cartRepository;
+		this.orderRepository = orderRepository;
+		this.cartStore = cartStore;
+		this.inventoryService = inventoryService;
+		this.itemRepository = itemRepository;
+		this.orderQueue = orderQueue;
+		this.orderIdGenerator = orderIdGenerator;
+		this.orderStatsService = orderStatsService;
+		this.submissionKeyService = submissionKeyService;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.async = "async".equalsIgnoreCase(mode.trim());
+	}
+
+	/**
+	 * Whether orders are submitted with {@link #enqueue} rather than {@link #submit}.
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Turns the cart with the given id into an order and empties it.
+	 *
+	 * @return the saved order, or empty if the cart doesn't exist
+	 * @throws OutOfStockException if the stock table no longer holds enough of an item in the cart
+	 * @throws OptimisticLockingFailureException if the cart was changed while the order was being placed
+	 * @throws IllegalStateException if edits held by the cart store couldn't be written to the database
+	 */
+	public Optional<UserOrder> submit(long cartId) {
+		return submit(cartId, null);
+	}
+
+	/**
+	 * Same as {@link #submit(long)}, also recording in the order's transaction that the submission key with the
+	 * given id, if not null, was answered with the order.
+	 *
+	 * @throws DuplicateKeyException if the key was recorded already, in which case no order is placed
+	 */
+	public Optional<UserOrder> submit(long cartId, String submissionKey) {
+		// Edits still held by the cart store reach the database before the order is built from it, and later
+		// edits wait until the emptied cart is reloaded
+		return cartStore.checkout(cartId, () -> transactionTemplate.execute(status -> {
+			Cart cart = cartRepository.findWithLinesById(cartId).orElse(null);
+			if (cart == null) {
+				return Optional.<UserOrder>empty();
+			}
+			// The items were loaded with the cart, so this also catches price changes not yet repriced into it
+			Map<Long, Integer> quantities = new HashMap<>();
+			for (CartLine line : cart.getLines().values()) {
+				cart.reprice(line.getItem());
+				quantities.put(line.getItem().getId(), line.getQuantity());
+			}
+			UserOrder placed = UserOrder.createFromCart(cart);
+			inventoryService.commit(quantities);
+			cart.clear();
+			orderRepository.save(placed);
+			if (submissionKey != null) {
+				submissionKeyService.record(submissionKey, new SubmittedOrder(placed.getId(), false));
+			}
+			cartRepository.flush();
+			orderStatsService.record(placed);
+			return Optional.of(placed);
+		}));
+	}
+
+	/**
+	 * Accepts the cart with the given id as an order to be written by the order queue, and empties it. The order
+	 * is priced at the items' current prices; its stock stays reserved until the writer takes it.
+	 *
+	 * @return the accepted order, or empty if the cart doesn't exist
+	 * @throws IllegalStateException if the cart is empty
+	 * @throws RejectedExecutionException if the order queue is full or shutting down
+	 */
+	public Optional<QueuedOrder> enqueue(long cartId) {
+		return enqueue(cartId, null);
+	}
+
+	/**
+	 * Same as {@link #enqueue(long)}, also recording that the submission key with the given id, if not null, was
+	 * answered with the order. The key is committed before the emptied cart is, or with it when carts are written
+	 * through, so a key that can't be recorded leaves the cart as it is.
+	 *
+	 * @throws DuplicateKeyException if the key was recorded already, in which case the cart is left as it is
+	 */
+	public Optional<QueuedOrder> enqueue(long cartId, String submissionKey) {
+		Cart current = cartStore.get(cartId);
+		if (current == null) {
+			return Optional.empty();
+		}
+		if (current.getLines().isEmpty()) {
+			throw new IllegalStateException("Cart " + cartId + " is empty");
+		}
+		// Read before claiming a place, so a slow read doesn't hold one
+		Iterable<Item> items = itemRepository.findAllById(current.getLines().keySet());
+		if (!orderQueue.claim()) {
+			throw new RejectedExecutionException("Order queue is full");
+		}
+		boolean queued = false;
+		try {
+			long orderId = orderIdGenerator.next();
+			Optional<QueuedOrder> order;
+			if (cartStore.getMode() == CartStore.Mode.SYNC) {
+				// The key goes in first, so a duplicate fails before the cart is touched, and the emptied cart is
+				// saved in the key's transaction
+				order = transactionTemplate.execute(status -> {
+					recordQueued(submissionKey, orderId);
+					return requireOrder(cartId, cartStore.modify(cartId, cart -> takeOrder(cart, orderId, items, null)));
+				});
+			} else {
+				// A held cart only takes the emptied copy once the change returns, so the key is committed from
+				// inside the change and a failed commit leaves the cart, and the stock it reserved, as they were.
+				// Edits of the cart wait for that commit.
+				Runnable recordKey = submissionKey == null ? null : () -> transactionTemplate.execute(status -> {
+					recordQueued(submissionKey, orderId);
+					return null;
+				});
+				order = requireOrder(cartId, cartStore.modify(cartId, cart -> takeOrder(cart, orderId, items, recordKey)));
+			}
+			orderQueue.enqueue(order.get());
+			queued = true;
+			return order;
+		} finally {
+			if (!queued) {
+				orderQueue.release();
+			}
+		}
+	}
+
+	/**
+	 * Builds the queued order from the cart at the given items' prices and empties the cart, running
+	 * {@code beforeEmptied}, if not null, in between. Returns null if the cart is empty.
+	 */
+	private static QueuedOrder takeOrder(Cart cart, long orderId, Iterable<Item> items, Runnable beforeEmptied) {
+		if (cart.getLines().isEmpty()) {
+			return null;
+		}
+		// Lines added since the items were read keep the price they were added at
+		items.forEach(cart::reprice);
+		QueuedOrder order = QueuedOrder.fromCart(orderId, cart);
+		if (beforeEmptied != null) {
+			beforeEmptied.run();
+		}
+		cart.clear();
+		return order;
+	}
+
+	private static Optional<QueuedOrder> requireOrder(long cartId, Optional<QueuedOrder> order) {
+		if (!order.isPresent()) {
+			throw new IllegalStateException("Cart " + cartId + " is empty");
+		}
+		return order;
+	}
+
+	private void recordQueued(String submissionKey, long orderId) {
+		if (submissionKey != null) {
+			submissionKeyService.record(submissionKey, new SubmittedOrder(orderId, true));
+		}
+	}
+
+	/**
+	 * Status of an order of the user, or null if the user has no order with that id.
+	 */
+	public Status status(long orderId, long userId) {
+		Status status = orderQueue.status(orderId, userId);
+		if (status != null) {
+			return status;
+		}
+		// Checked after the queue, as an order leaves the queue only once it has been written
+		return orderRepository.existsByIdAndUserId(orderId, userId) ? Status.PLACED : null;
+	}
+}
@@ -0,0 +1,341 @@
+package com.example.demo.service;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.OrderLine;
+import com.example.demo.model.persistence.UserOrder;
+import com.example.demo.model.responses.OrderStatsResponse;
+
+/**
+ * Lifetime order totals per user, per item and per day, kept in summary tables so reading them never scans
+ * the orders. Orders are added to their user's row in the transaction that writes them, summed per transaction
+ * first so a batch of orders costs one update per user it touches. Item and daily rows are shared by every
+ * order, so locking them in order transactions would serialize all of them: instead what each transaction adds
+ * to them is collected once it commits and written by a periodic flush, in key order, in a transaction of its
+ * own. Those rows lag behind by up to a flush interval, and what wasn't flushed yet is lost if the process
+ * dies. Each table is mirrored in memory by {@link LongAdder} counters, added to once the transaction commits,
+ * which answer lookups without going to the database.
+ *
+ * <p>The mirrors are loaded from the tables at startup, and only see orders this instance writes afterwards.
+ * Orders placed before the tables existed are summed into the user and item tables at startup; they carry no
+ * date, so the daily table starts empty.
+ */
+@Service
+public class OrderStatsService {
+
+	private static final Logger log = LoggerFactory.getLogger(OrderStatsService.class);
+
+	private static final String COUNT_USERS = "select count(*) from user_order_stats";
+	private static final String BACKFILL_USERS = "insert into user_order_stats (user_id, orders, units, total)"
+			+ " select o.user_id, count(*), coalesce(sum(l.units), 0), coalesce(sum(o.total), 0) from user_order o"
+			+ " left join (select order_id, sum(quantity) units from user_order_line group by order_id) l"
+			+ " on l.order_id = o.id group by o.user_id";
+	private static final String BACKFILL_ITEMS = "insert into item_order_stats (item_id, orders, units, total)"
+			+ " select item_id, count(distinct order_id), sum(quantity), sum(quantity * unit_price)"
+			+ " from user_order_line group by item_id";
+
+	private enum Scope {
+		USER("user_order_stats", "user_id"),
+		ITEM("item_order_stats", "item_id"),
+		DAY("daily_order_stats", "order_date");
+
+		private final String select;
+		private final String add;
+		private final String insert;
+
+		// Whether the rows are written in the order's transaction rather than by the flush
+		private boolean inTransaction() {
+			return this == USER;
+		}
+
+		Scope(String table, String key) {
+			this.select = "select " + key + ", orders, units, total from " + table;
+			this.add = "update " + table + " set orders = orders + ?, units = units + ?, total = total + ? where "
+					+ key + " = ?";
+			this.insert = "insert into " + table + " (" + key + ", orders, units, total) values (?, 0, 0, 0)";
+		}
+	}
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	// Rows are created in their own transaction, so two orders creating the same row can't fail each other
+	private final TransactionTemplate rowCreator;
+	private final Map<Scope, ConcurrentHashMap<Long, Totals>> mirrors = new EnumMap<>(Scope.class);
+	// Committed additions to the item and daily rows that the next flush writes
+	private final Map<Scope, ConcurrentHashMap<Long, Delta>> pending = new EnumMap<>(Scope.class);
+
+	public OrderStatsService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.rowCreator = new TransactionTemplate(transactionManager);
+		this.rowCreator.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		for (Scope scope : Scope.values()) {
+			mirrors.put(scope, new ConcurrentHashMap<>());
+			if (!scope.inTransaction()) {
+				pending.put(scope, new ConcurrentHashMap<>());
+			}
+		}
+	}
+
+	// Not @PostConstruct: the tables are only created once the persistence unit is up
+	@EventListener(ApplicationReadyEvent.class)
+	public void init() {
+		transactionTemplate.execute(status -> {
+			if (jdbcTemplate.queryForObject(COUNT_USERS, Long.class) == 0) {
+				int users = jdbcTemplate.update(BACKFILL_USERS);
+				int items = jdbcTemplate.update(BACKFILL_ITEMS);
+				if (users > 0) {
+					log.info("Order stats filled in from existing orders for {} users and {} items", users, items);
+				}
+			}
+			return null;
+		});
+		for (Scope scope : Scope.values()) {
+			ConcurrentHashMap<Long, Totals> mirror = mirrors.get(scope);
+			mirror.clear();
+			jdbcTemplate.query(scope.select, rs -> {
+				long key = scope == Scope.DAY ? rs.getDate(1).toLocalDate().toEpochDay() : rs.getLong(1);
+				mirror.computeIfAbsent(key, k -> new Totals()).add(rs.getLong(2), rs.getLong(3), rs.getLong(4));
+			});
+		}
+	}
+
+	/**
+	 * Adds an order to the stats. Has to run inside the transaction that writes the order, best as its last
+	 * statement so the user's row is locked for as short as possible.
+	 */
+	public void record(UserOrder order) {
+		Changes changes = new Changes();
+		changes.add(order.getUser().getId(), order.getTotal(), order.getLines());
+		record(changes);
+	}
+
+	/**
+	 * Adds queued orders to the stats. Has to run inside the transaction that writes the orders, best as its
+	 * last statement.
+	 */
+	public void record(Collection<QueuedOrder> orders) {
+		if (orders.isEmpty()) {
+			return;
+		}
+		Changes changes = new Changes();
+		for (QueuedOrder order : orders) {
+			changes.add(order.getUserId(), order.getTotal(), order.getLines());
+		}
+		record(changes);
+	}
+
+	/**
+	 * Writes the additions to the item and daily rows collected since the last flush, in key order so concurrent
+	 * writers of the same rows can't deadlock. If the write fails they are kept for the next flush.
+	 */
+	@Scheduled(initialDelayString = "${order.stats.flush-interval-millis:1000}",
+			fixedDelayString = "${order.stats.flush-interval-millis:1000}")
+	public synchronized void flush() {
+		Map<Scope, SortedMap<Long, Delta>> batch = new EnumMap<>(Scope.class);
+		pending.forEach((scope, deltas) -> {
+			SortedMap<Long, Delta> taken = new TreeMap<>();
+			for (Long key : deltas.keySet()) {
+				// Removing is atomic with the merges adding to the key, so nothing added is missed
+				Delta delta = deltas.remove(key);
+				if (delta != null) {
+					taken.put(key, delta);
+				}
+			}
+			if (!taken.isEmpty()) {
+				batch.put(scope, taken);
+			}
+		});
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			transactionTemplate.execute(status -> {
+				batch.forEach(this::write);
+				return null;
+			});
+		} catch (DataAccessException | TransactionException e) {
+			log.error("Flushing order stats failed, will retry", e);
+			batch.forEach((scope, deltas) -> {
+				ConcurrentHashMap<Long, Delta> toFlush = pending.get(scope);
+				deltas.forEach((key, delta) -> toFlush.merge(key, delta, Delta::plus));
+			});
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flush();
+	}
+
+	public OrderStatsResponse user(long userId) {
+		return lookup(Scope.USER, userId);
+	}
+
+	public OrderStatsResponse item(long itemId) {
+		return lookup(Scope.ITEM, itemId);
+	}
+
+	public OrderStatsResponse day(LocalDate day) {
+		return lookup(Scope.DAY, day.toEpochDay());
+	}
+
+	private OrderStatsResponse lookup(Scope scope, long key) {
+		Totals totals = mirrors.get(scope).get(key);
+		if (totals == null) {
+			return new OrderStatsResponse(0, 0, Money.ZERO);
+		}
+		return new OrderStatsResponse(totals.orders.sum(), totals.units.sum(), Money.ofMinor(totals.total.sum()));
+	}
+
+	private void record(Changes changes) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			throw new IllegalStateException("Order stats have to be recorded in the transaction writing the orders");
+		}
+		changes.deltas.forEach((scope, deltas) -> {
+			if (scope.inTransaction()) {
+				write(scope, deltas);
+			}
+		});
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				changes.deltas.forEach((scope, deltas) -> {
+					ConcurrentHashMap<Long, Totals> mirror = mirrors.get(scope);
+					deltas.forEach((key, delta) ->
+							mirror.computeIfAbsent(key, k -> new Totals()).add(delta.orders, delta.units, delta.total));
+					if (!scope.inTransaction()) {
+						ConcurrentHashMap<Long, Delta> toFlush = pending.get(scope);
+						deltas.forEach((key, delta) -> toFlush.merge(key, delta, Delta::plus));
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Adds the deltas to their rows, creating the missing ones, in the current transaction.
+	 */
+	private void write(Scope scope, SortedMap<Long, Delta> deltas) {
+		List<Long> keys = new ArrayList<>(deltas.keySet());
+		int[] updated = add(scope, keys, deltas);
+		List<Long> missing = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i++) {
+			if (updated[i] == 0) {
+				missing.add(keys.get(i));
+			}
+		}
+		if (!missing.isEmpty()) {
+			for (Long key : missing) {
+				createRow(scope, key);
+			}
+			add(scope, missing, deltas);
+		}
+	}
+
+	private int[] add(Scope scope, List<Long> keys, Map<Long, Delta> deltas) {
+		List<Object[]> args = new ArrayList<>(keys.size());
+		for (Long key : keys) {
+			Delta delta = deltas.get(key);
+			args.add(new Object[] {delta.orders, delta.units, delta.total, param(scope, key)});
+		}
+		return jdbcTemplate.batchUpdate(scope.add, args);
+	}
+
+	private void createRow(Scope scope, long key) {
+		try {
+			rowCreator.execute(status -> jdbcTemplate.update(scope.insert, param(scope, key)));
+		} catch (DuplicateKeyException e) {
+			// Created by another order in the meantime
+		}
+	}
+
+	private static Object param(Scope scope, long key) {
+		return scope == Scope.DAY ? Date.valueOf(LocalDate.ofEpochDay(key)) : key;
+	}
+
+	/**
+	 * What one transaction adds to each row, summed over its orders. Keys are sorted so rows are always locked in
+	 * the same order.
+	 */
+	private static final class Changes {
+		private final Map<Scope, SortedMap<Long, Delta>> deltas = new EnumMap<>(Scope.class);
+		private final long today = LocalDate.now().toEpochDay();
+
+		private void add(long userId, Money total, List<OrderLine> lines) {
+			long units = 0;
+			for (OrderLine line : lines) {
+				units += line.getQuantity();
+				delta(Scope.ITEM, line.getItemId()).add(line.getQuantity(), line.getSubtotal().getMinorUnits());
+			}
+			long amount = total == null ? 0 : total.getMinorUnits();
+			delta(Scope.USER, userId).add(units, amount);
+			delta(Scope.DAY, today).add(units, amount);
+		}
+
+		private Delta delta(Scope scope, long key) {
+			return deltas.computeIfAbsent(scope, s -> new TreeMap<>()).computeIfAbsent(key, k -> new Delta());
+		}
+	}
+
+	private static final class Delta {
+		private long orders;
+		private long units;
+		private long total;
+
+		private void add(long units, long total) {
+			this.orders++;
+			this.units += units;
+			this.total += total;
+		}
+
+		private static Delta plus(Delta a, Delta b) {
+			Delta sum = new Delta();
+			sum.orders = a.orders + b.orders;
+			sum.units = a.units + b.units;
+			sum.total = a.total + b.total;
+			return sum;
+		}
+	}
+
+	private static final class Totals {
+		private final LongAdder orders = new LongAdder();
+		private final LongAdder units = new LongAdder();
+		private final LongAdder total = new LongAdder();
+
+		private void add(long orders, long units, long total) {
+			this.orders.add(orders);
+			this.units.add(units);
+			this.total.add(total);
+		}
+	}
+}
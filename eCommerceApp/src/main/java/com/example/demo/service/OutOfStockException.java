@@ -0,0 +1,18 @@
+package com.example.demo.service;
+
+/**
+ * Thrown when units of an item can't be reserved or sold because not enough of it is left.
+ */
+public class OutOfStockException extends RuntimeException {
+
+	private final long itemId;
+
+	public OutOfStockException(long itemId) {
+		super("Item with ID " + itemId + " is out of stock");
+		this.itemId = itemId;
+	}
+
+	public long getItemId() {
+		return itemId;
+	}
+}
@@ -0,0 +1,72 @@
+package com.example.demo.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.CartLine;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.OrderLine;
+
+/**
+ * An order accepted from a cart but not yet written: what the writer needs to insert it, taken from the cart
+ * when it was emptied.
+ */
+public class QueuedOrder {
+
+	private final long id;
+	private final long userId;
+	private final Money total;
+	private final List<OrderLine> lines;
+	private final Map<Long, Integer> quantities;
+	private final long queuedAt = System.currentTimeMillis();
+
+	private QueuedOrder(long id, long userId, Money total, List<OrderLine> lines, Map<Long, Integer> quantities) {
+		this.id = id;
+		this.userId = userId;
+		this.total = total;
+		this.lines = lines;
+		this.quantities = quantities;
+	}
+
+	public static QueuedOrder fromCart(long id, Cart cart) {
+		List<OrderLine> lines = new ArrayList<>(cart.getLines().size());
+		Map<Long, Integer> quantities = new HashMap<>();
+		Money total = Money.ZERO;
+		for (CartLine line : cart.getLines().values()) {
+			OrderLine orderLine = OrderLine.of(line);
+			lines.add(orderLine);
+			quantities.put(orderLine.getItemId(), orderLine.getQuantity());
+			total = total.plus(orderLine.getSubtotal());
+		}
+		return new QueuedOrder(id, cart.getUser().getId(), total, Collections.unmodifiableList(lines),
+				Collections.unmodifiableMap(quantities));
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getUserId() {
+		return userId;
+	}
+
+	public Money getTotal() {
+		return total;
+	}
+
+	public List<OrderLine> getLines() {
+		return lines;
+	}
+
+	public Map<Long, Integer> getQuantities() {
+		return quantities;
+	}
+
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+}
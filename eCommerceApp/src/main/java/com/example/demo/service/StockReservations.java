@@ -0,0 +1,62 @@
+package com.example.demo.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stock reserved and released by one cart edit. Reservations are taken straight away so an edit can't add units
+ * that aren't there; releases wait until the edit has been saved. As the cart store may run an edit more than
+ * once, each run starts with {@link #reset()}, which hands back what an earlier run reserved.
+ */
+public class StockReservations {
+
+	private final InventoryService inventoryService;
+	private final Map<Long, Long> reserved = new HashMap<>();
+	private final Map<Long, Long> released = new HashMap<>();
+
+	StockReservations(InventoryService inventoryService) {
+		this.inventoryService = inventoryService;
+	}
+
+	/**
+	 * Reserves units of an item, returning false if not enough are available.
+	 */
+	public boolean reserve(long itemId, long quantity) {
+		if (quantity <= 0) {
+			return true;
+		}
+		if (!inventoryService.reserve(itemId, quantity)) {
+			return false;
+		}
+		reserved.merge(itemId, quantity, Long::sum);
+		return true;
+	}
+
+	/**
+	 * Releases units of an item once the edit is saved.
+	 */
+	public void release(long itemId, long quantity) {
+		if (quantity > 0) {
+			released.merge(itemId, quantity, Long::sum);
+		}
+	}
+
+	/**
+	 * Hands back everything reserved so far and forgets pending releases, for when the edit is abandoned or
+	 * about to run again.
+	 */
+	public void reset() {
+		reserved.forEach(inventoryService::release);
+		reserved.clear();
+		released.clear();
+	}
+
+	/**
+	 * Keeps the reservations and applies the releases, once the edit has been saved.
+	 */
+	public void complete() {
+		released.forEach(inventoryService::release);
+		reserved.clear();
+		released.clear();
+	}
+}
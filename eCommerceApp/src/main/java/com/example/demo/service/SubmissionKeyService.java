@@ -0,0 +1,151 @@
+package com.example.demo.service;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.example.demo.model.persistence.repositories.SubmissionKeyRepository;
+import com.example.demo.util.ExpiringCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Makes order submissions idempotent per client supplied key. The first successful submission under a key is
+ * recorded in the submission_key table and in a bounded in-memory cache in front of it, both for ttl-millis;
+ * later submissions under the key get that order back without submitting again. The row is inserted by the
+ * submission itself, through {@link #record}, in the transaction that places or accepts the order, so the key
+ * is stored if and only if the order is. A submission arriving while another with the same key is still running
+ * here waits for it instead of running alongside; one that loses the race on the table to a submission
+ * elsewhere fails on the duplicate row, rolling its order back, and gets the stored order instead. Submissions
+ * that fail aren't recorded, so a retry under the same key runs again.
+ */
+@Service
+public class SubmissionKeyService implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(SubmissionKeyService.class);
+
+	private static final String DELETE_EXPIRED = "delete from submission_key where id = ? and expires_at <= ?";
+	private static final String INSERT = "insert into submission_key (id, order_id, queued, expires_at)"
+			+ " values (?, ?, ?, ?)";
+
+	private final SubmissionKeyRepository submissionKeyRepository;
+	private final JdbcTemplate jdbcTemplate;
+	private final long ttlMillis;
+	private final ExpiringCache<String, SubmittedOrder> recent;
+	private final ConcurrentHashMap<String, CompletableFuture<SubmittedOrder>> running = new ConcurrentHashMap<>();
+	private final LongAdder replays = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	public SubmissionKeyService(SubmissionKeyRepository submissionKeyRepository, JdbcTemplate jdbcTemplate,
+			@Value("${order.idempotency.ttl-millis:86400000}") long ttlMillis,
+			@Value("${order.idempotency.cache-size:10000}") int cacheSize) {
+		this.submissionKeyRepository = submissionKeyRepository;
+		this.jdbcTemplate = jdbcTemplate;
+		this.ttlMillis = ttlMillis;
+		this.recent = new ExpiringCache<>(cacheSize);
+	}
+
+	/**
+	 * Runs the submission unless the user already submitted under the key, returning the order the key stands
+	 * for. The submission is given the key's id to {@link #record} with its order, and returns null when it
+	 * fails, which leaves the key unused.
+	 */
+	public SubmittedOrder submit(long userId, String key, Function<String, SubmittedOrder> submission) {
+		String id = userId + ":" + key;
+		while (true) {
+			SubmittedOrder order = recent.get(id);
+			if (order != null) {
+				replays.increment();
+				return order;
+			}
+			CompletableFuture<SubmittedOrder> mine = new CompletableFuture<>();
+			CompletableFuture<SubmittedOrder> other = running.putIfAbsent(id, mine);
+			if (other != null) {
+				coalesced.increment();
+				order = other.exceptionally(e -> null).join();
+				if (order != null) {
+					return order;
+				}
+				// The other submission failed, so this one gets its own go
+				continue;
+			}
+			try {
+				order = stored(id);
+				if (order != null) {
+					replays.increment();
+				} else {
+					try {
+						order = submission.apply(id);
+					} catch (DuplicateKeyException e) {
+						// Recorded by a submission that committed first, this one's order was rolled back
+						order = stored(id);
+						if (order == null) {
+							throw e;
+						}
+						replays.increment();
+					}
+				}
+				if (order != null) {
+					recent.put(id, order, System.currentTimeMillis() + ttlMillis);
+				}
+				mine.complete(order);
+				return order;
+			} catch (RuntimeException e) {
+				mine.completeExceptionally(e);
+				throw e;
+			} finally {
+				running.remove(id, mine);
+			}
+		}
+	}
+
+	/**
+	 * Stores the order a key was answered with. Has to run inside the transaction that places or accepts the
+	 * order, which it fails with a {@link DuplicateKeyException} if the key was recorded already.
+	 */
+	public void record(String id, SubmittedOrder order) {
+		long now = System.currentTimeMillis();
+		// An expired row not yet purged doesn't hold the key any more
+		jdbcTemplate.update(DELETE_EXPIRED, id, new Date(now));
+		jdbcTemplate.update(INSERT, id, order.getOrderId(), order.isQueued(), new Date(now + ttlMillis));
+	}
+
+	private SubmittedOrder stored(String id) {
+		return submissionKeyRepository.findById(id)
+				.filter(stored -> stored.getExpiresAt().getTime() > System.currentTimeMillis())
+				.map(stored -> new SubmittedOrder(stored.getOrderId(), stored.isQueued()))
+				.orElse(null);
+	}
+
+	@Scheduled(initialDelayString = "${order.idempotency.purge-interval-millis:3600000}",
+			fixedDelayString = "${order.idempotency.purge-interval-millis:3600000}")
+	public void purgeExpired() {
+		int deleted = submissionKeyRepository.deleteExpired(new Date());
+		recent.purgeExpired();
+		if (deleted > 0) {
+			log.info("Deleted {} expired submission keys", deleted);
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("order.idempotency.replays", replays, LongAdder::sum)
+				.description("Submissions answered with the order already submitted under their key")
+				.register(registry);
+		FunctionCounter.builder("order.idempotency.coalesced", coalesced, LongAdder::sum)
+				.description("Submissions that waited for one with the same key still running")
+				.register(registry);
+	}
+}
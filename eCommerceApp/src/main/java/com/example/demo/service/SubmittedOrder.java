@@ -0,0 +1,23 @@
+package com.example.demo.service;
+
+/**
+ * What a submission was answered with: the order's id, and whether it was only queued rather than placed.
+ */
+public class SubmittedOrder {
+
+	private final long orderId;
+	private final boolean queued;
+
+	public SubmittedOrder(long orderId, boolean queued) {
+		this.orderId = orderId;
+		this.queued = queued;
+	}
+
+	public long getOrderId() {
+		return orderId;
+	}
+
+	public boolean isQueued() {
+		return queued;
+	}
+}
@@ -0,0 +1,258 @@
+package com.example.demo.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.requests.CreateUserRequest;
+import com.example.demo.model.responses.BulkCreateUserResponse;
+import com.example.demo.model.responses.BulkCreateUserResult;
+import com.example.demo.model.responses.BulkCreateUserResult.Status;
+import com.example.demo.security.PasswordHashingExecutor;
+import com.example.demo.security.PasswordHashingRejectedException;
+import com.example.demo.security.UpgradingBCryptPasswordEncoder;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Creates users in bulk for account migrations. The whole request is validated before any work is done, then
+ * users are created a chunk at a time: the chunk's passwords are hashed on the shared
+ * {@link PasswordHashingExecutor}, a few at a time so logins keep their share of it, and its carts and users are
+ * written with batched JDBC inserts in one transaction rather than one JPA save (and transaction) per row.
+ *
+ * <p>Any authenticated user can call it, so it is off unless provisioning.enabled is set.
+ */
+@Service
+public class UserProvisioningService {
+
+	private static final Logger log = LoggerFactory.getLogger(UserProvisioningService.class);
+
+	private static final String INSERT_CART = "insert into cart (total, version, last_modified) values (?, 0, ?)";
+	private static final String INSERT_USER = "insert into user (username, password, cart_id) values (?, ?, ?)";
+
+	private final UserRepository userRepository;
+	private final UsernameIndex usernameIndex;
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final UserCache userCache;
+	private final BCryptPasswordEncoder passwordEncoder;
+	private final PasswordHashingExecutor hashingExecutor;
+	private final ObjectReader requestReader;
+	private final boolean enabled;
+	private final int maxUsers;
+	private final int chunkSize;
+	private final int parallelism;
+
+	public UserProvisioningService(UserRepository userRepository, UsernameIndex usernameIndex,
+			JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, UserCache userCache,
+			BCryptPasswordEncoder bCryptPasswordEncoder, PasswordHashingExecutor hashingExecutor,
+			ObjectMapper objectMapper,
+			@Value("${provisioning.enabled:false}") boolean enabled,
+			@Value("${provisioning.max-users:50000}") int maxUsers,
+			@Value("${provisioning.chunk-size:1000}") int chunkSize,
+			@Value("${provisioning.parallelism:0}") int parallelism,
+			@Value("${provisioning.bcrypt-strength:0}") int bcryptStrength) {
+		this.userRepository = userRepository;
+		this.usernameIndex = usernameIndex;
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(transactionManager);
+		this.userCache = userCache;
+		// A lower cost can be used to speed up migrations: such hashes are upgraded on the user's first login
+		this.passwordEncoder = bcryptStrength > 0 ? new UpgradingBCryptPasswordEncoder(bcryptStrength)
+				: bCryptPasswordEncoder;
+		this.hashingExecutor = hashingExecutor;
+		this.requestReader = objectMapper.readerFor(CreateUserRequest.class);
+		this.enabled = enabled;
+		this.maxUsers = maxUsers;
+		this.chunkSize = Math.max(1, chunkSize);
+		// By default half the shared pool, leaving the other half to logins and signups
+		this.parallelism = parallelism > 0 ? parallelism : Math.max(1, hashingExecutor.getPoolSize() / 2);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Reads a JSON array (or newline delimited stream) of create requests and provisions the valid ones.
+	 *
+	 * @throws IOException if the body can't be parsed
+	 * @throws IllegalArgumentException if the request holds more users than allowed in one call
+	 */
+	public BulkCreateUserResponse provision(InputStream body) throws IOException {
+		List<CreateUserRequest> requests = new ArrayList<>();
+		try (MappingIterator<CreateUserRequest> it = requestReader.readValues(body)) {
+			while (it.hasNextValue()) {
+				if (requests.size() == maxUsers) {
+					throw new IllegalArgumentException("At most " + maxUsers + " users can be created per request");
+				}
+				requests.add(it.nextValue());
+			}
+		}
+		return provision(requests);
+	}
+
+	public BulkCreateUserResponse provision(List<CreateUserRequest> requests) {
+		List<BulkCreateUserResult> results = new ArrayList<>(requests.size());
+		List<Integer> accepted = validate(requests, results);
+
+		for (int from = 0; from < accepted.size(); from += chunkSize) {
+			List<Integer> chunk = accepted.subList(from, Math.min(from + chunkSize, accepted.size()));
+			List<String> hashes;
+			try {
+				hashes = hash(requests, chunk);
+			} catch (PasswordHashingRejectedException e) {
+				// The pool is saturated by interactive traffic; the caller can resend the rows that failed
+				log.error("Password hashing pool is busy, {} users of the bulk request not created",
+						accepted.size() - from, e);
+				accepted.subList(from, accepted.size()).forEach(index -> results.get(index).setStatus(Status.FAILED));
+				break;
+			}
+			try {
+				long[] ids = transactionTemplate.execute(status -> insert(requests, hashes, chunk));
+				for (int i = 0; i < chunk.size(); i++) {
+					BulkCreateUserResult result = results.get(chunk.get(i));
+					result.setStatus(Status.CREATED);
+					result.setId(ids[i]);
+					usernameIndex.add(result.getUsername());
+					userCache.removeUserFromCache(result.getUsername());
+				}
+			} catch (DataAccessException e) {
+				// Most likely a username taken by a concurrent signup since validation
+				log.error("Bulk user insert failed for a chunk of {} users", chunk.size(), e);
+				chunk.forEach(index -> results.get(index).setStatus(Status.FAILED));
+			}
+		}
+		BulkCreateUserResponse response = new BulkCreateUserResponse(results);
+		log.info("Bulk user creation finished: {} created, {} rejected", response.getCreated(), response.getRejected());
+		return response;
+	}
+
+	/**
+	 * Fills in a result for every request and returns the indexes of the ones that can be created.
+	 */
+	private List<Integer> validate(List<CreateUserRequest> requests, List<BulkCreateUserResult> results) {
+		Map<String, Integer> candidates = new HashMap<>();
+		for (int i = 0; i < requests.size(); i++) {
+			CreateUserRequest request = requests.get(i);
+			String username = request == null ? null : request.getUsername();
+			BulkCreateUserResult result = new BulkCreateUserResult(i, username, null);
+			results.add(result);
+			if (username == null || username.trim().isEmpty()) {
+				result.setStatus(Status.INVALID_USERNAME);
+			} else if (!request.hasValidPassword()) {
+				result.setStatus(Status.INVALID_PASSWORD);
+			} else if (candidates.putIfAbsent(username, i) != null) {
+				result.setStatus(Status.DUPLICATE_IN_REQUEST);
+			}
+		}
+
+		// Only names the index can't rule out need to be checked against the user table
+		Set<String> taken = new HashSet<>();
+		List<String> usernames = new ArrayList<>();
+		for (String username : candidates.keySet()) {
+			if (usernameIndex.mightExist(username)) {
+				usernames.add(username);
+			}
+		}
+		for (int from = 0; from < usernames.size(); from += chunkSize) {
+			taken.addAll(userRepository.findExistingUsernames(
+					usernames.subList(from, Math.min(from + chunkSize, usernames.size()))));
+		}
+
+		List<Integer> accepted = new ArrayList<>(candidates.size());
+		for (BulkCreateUserResult result : results) {
+			if (result.getStatus() != null) {
+				continue;
+			}
+			if (taken.contains(result.getUsername())) {
+				result.setStatus(Status.USERNAME_TAKEN);
+			} else {
+				accepted.add(result.getIndex());
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Hashes the passwords of the chunk's requests, returning them in the chunk's order.
+	 */
+	private List<String> hash(List<CreateUserRequest> requests, List<Integer> chunk) {
+		List<Callable<String>> work = new ArrayList<>(chunk.size());
+		for (int index : chunk) {
+			String password = requests.get(index).getPassword();
+			work.add(() -> passwordEncoder.encode(password));
+		}
+		return hashingExecutor.executeAll(work, parallelism);
+	}
+
+	/**
+	 * Inserts a cart and then a user for each request in the chunk, returning the new user ids in order.
+	 */
+	private long[] insert(List<CreateUserRequest> requests, List<String> hashes, List<Integer> chunk) {
+		return jdbcTemplate.execute((Connection connection) -> {
+			long[] cartIds = new long[chunk.size()];
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			try (PreparedStatement carts = connection.prepareStatement(INSERT_CART, Statement.RETURN_GENERATED_KEYS)) {
+				for (int i = 0; i < chunk.size(); i++) {
+					carts.setNull(1, Types.BIGINT);
+					carts.setTimestamp(2, now);
+					carts.addBatch();
+				}
+				carts.executeBatch();
+				readKeys(carts, cartIds);
+			}
+			long[] userIds = new long[chunk.size()];
+			try (PreparedStatement users = connection.prepareStatement(INSERT_USER, Statement.RETURN_GENERATED_KEYS)) {
+				for (int i = 0; i < chunk.size(); i++) {
+					int index = chunk.get(i);
+					users.setString(1, requests.get(index).getUsername());
+					users.setString(2, hashes.get(i));
+					users.setLong(3, cartIds[i]);
+					users.addBatch();
+				}
+				users.executeBatch();
+				readKeys(users, userIds);
+			}
+			return userIds;
+		});
+	}
+
+	private static void readKeys(Statement statement, long[] ids) throws SQLException {
+		try (ResultSet keys = statement.getGeneratedKeys()) {
+			int i = 0;
+			while (keys.next() && i < ids.length) {
+				ids[i++] = keys.getLong(1);
+			}
+			if (i != ids.length) {
+				throw new IllegalStateException("Expected " + ids.length + " generated keys but got " + i);
+			}
+		}
+	}
+}
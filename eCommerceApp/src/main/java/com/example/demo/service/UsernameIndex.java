@@ -0,0 +1,122 @@
+package com.example.demo.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.demo.util.BloomFilter;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * In-memory membership index of taken usernames, so signups for a new name can skip the database lookup
+ * entirely. The user table stays authoritative: a negative answer is exact, a positive one only means the
+ * name has to be checked against the table. Users are never deleted, so the filter only needs rebuilding
+ * when it has grown past its sizing, which the periodic check does with twice the capacity.
+ */
+@Component
+public class UsernameIndex implements MeterBinder {
+
+	private static final Logger log = LoggerFactory.getLogger(UsernameIndex.class);
+
+	private static final String SELECT_USERNAMES = "select username from user";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final double falsePositiveRate;
+	private final AtomicLong size = new AtomicLong();
+	private final LongAdder indexChecks = new LongAdder();
+	private final LongAdder possibleMatches = new LongAdder();
+
+	private volatile long capacity;
+	private volatile BloomFilter filter;
+	// Non-null while a rebuild is loading names, so users created meanwhile land in the new filter too
+	private volatile BloomFilter building;
+
+	public UsernameIndex(JdbcTemplate jdbcTemplate,
+			@Value("${security.username-index.expected-users:1000000}") long expectedUsers,
+			@Value("${security.username-index.false-positive-rate:0.01}") double falsePositiveRate) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.falsePositiveRate = falsePositiveRate;
+		this.capacity = expectedUsers;
+		this.filter = new BloomFilter(expectedUsers, falsePositiveRate);
+	}
+
+	@PostConstruct
+	public void init() {
+		rebuild(capacity);
+	}
+
+	/**
+	 * Returns false if the username is definitely not taken, true if it may be and the table has to be asked.
+	 */
+	public boolean mightExist(String username) {
+		indexChecks.increment();
+		if (!filter.mightContain(username)) {
+			return false;
+		}
+		possibleMatches.increment();
+		return true;
+	}
+
+	/**
+	 * Records a username once its user row has been written.
+	 */
+	public void add(String username) {
+		BloomFilter next = building;
+		filter.put(username);
+		if (next != null) {
+			next.put(username);
+		}
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Swaps in a filter with twice the capacity once more users have been added than it was sized for.
+	 */
+	@Scheduled(initialDelayString = "${security.username-index.resize-check-millis:60000}",
+			fixedDelayString = "${security.username-index.resize-check-millis:60000}")
+	public void resizeIfFull() {
+		long current = capacity;
+		if (size.get() > current) {
+			log.info("Username index holds {} names but was sized for {}, rebuilding", size.get(), current);
+			rebuild(Math.max(size.get(), current) * 2);
+		}
+	}
+
+	private synchronized void rebuild(long newCapacity) {
+		BloomFilter next = new BloomFilter(newCapacity, falsePositiveRate);
+		building = next;
+		try {
+			AtomicLong loaded = new AtomicLong();
+			jdbcTemplate.query(SELECT_USERNAMES, rs -> {
+				next.put(rs.getString(1));
+				loaded.incrementAndGet();
+			});
+			capacity = newCapacity;
+			filter = next;
+			size.set(loaded.get());
+			log.debug("Username index built with {} names", loaded.get());
+		} finally {
+			building = null;
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("users.username.index.checks", indexChecks, LongAdder::sum).register(registry);
+		FunctionCounter.builder("users.username.index.possible.matches", possibleMatches, LongAdder::sum)
+				.register(registry);
+		Gauge.builder("users.username.index.size", size, AtomicLong::get).register(registry);
+	}
+}
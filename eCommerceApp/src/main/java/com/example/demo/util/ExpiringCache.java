@@ -0,0 +1,156 @@
+package com.example.demo.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-bounded concurrent map whose entries each carry their own expiry time. Lookups of expired entries
+ * count as misses and drop the entry. Keys are spread over segments, each an access-ordered map with its
+ * own lock and its own share of the bound, so a put into a full segment evicts that segment's least recently
+ * used entry in constant time. Expired entries nobody looks up again are only reclaimed by that eviction or
+ * by {@link #purgeExpired()}, which owners call on a schedule.
+ */
+public class ExpiringCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public ExpiringCache(int maxSize) {
+        int count = Math.max(1, Math.min(MAX_SEGMENTS, maxSize));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // Spread the remainder so the segments add up to maxSize exactly
+            segments[i] = new Segment<>(Math.max(0, maxSize / count + (i < maxSize % count ? 1 : 0)));
+        }
+    }
+
+    /**
+     * Returns the live value for the key, or null if there is none.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                segment.remove(key);
+                entry = null;
+            }
+            value = entry == null ? null : entry.value;
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Stores the value until the given epoch millis. Values that are already expired are ignored.
+     */
+    public void put(K key, V value, long expiresAt) {
+        if (expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        Segment<K, V> segment = segmentFor(key);
+        if (segment.maxSize <= 0) {
+            return;
+        }
+        synchronized (segment) {
+            segment.put(key, new Entry<>(value, expiresAt));
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Drops every expired entry, for callers that want to reclaim memory on a schedule. Locks one segment at a
+     * time, so lookups in the other segments go on meanwhile.
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.values().removeIf(entry -> entry.expiresAt <= now);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Fraction of lookups answered from the cache, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.demo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Non-negative counter that many threads can take from at once without all of them CASing the same word. The
+ * count is split over cells that sit on separate cache lines; a taker starts at the cell picked by its thread
+ * and only moves on to the others when that one runs short, so threads on different cores rarely contend.
+ * {@link #tryTake} never takes more than the cells hold, but near zero it can fail while units are briefly
+ * spread over cells it has already passed.
+ */
+public class StripedCounter {
+
+    // 16 longs = 128 bytes between used slots, so neighbouring cells never share a cache line (or its pair)
+    private static final int PAD = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    // Units taken away by reduce() that the cells couldn't cover; paid off by later adds before they land
+    private final AtomicLong debt = new AtomicLong();
+
+    public StripedCounter(long initial) {
+        this(initial, Runtime.getRuntime().availableProcessors());
+    }
+
+    public StripedCounter(long initial, int concurrency) {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1) << 1);
+        this.cells = new AtomicLongArray(size * PAD);
+        this.mask = size - 1;
+        add(initial);
+    }
+
+    /**
+     * Takes n units if the counter holds at least that many, and returns whether it did.
+     */
+    public boolean tryTake(long n) {
+        if (n <= 0) {
+            return true;
+        }
+        int home = home();
+        long taken = 0;
+        for (int i = 0; i <= mask && taken < n; i++) {
+            taken += takeFrom((home + i) & mask, n - taken);
+        }
+        if (taken < n) {
+            putBack(home, taken);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds n units, spread evenly over the cells.
+     */
+    public void add(long n) {
+        n -= payDebt(n);
+        if (n <= 0) {
+            return;
+        }
+        int cellCount = mask + 1;
+        long share = n / cellCount;
+        long rest = n % cellCount;
+        int home = home();
+        for (int i = 0; i < cellCount; i++) {
+            long amount = share + (i < rest ? 1 : 0);
+            if (amount > 0) {
+                cells.getAndAdd(((home + i) & mask) * PAD, amount);
+            }
+        }
+    }
+
+    /**
+     * Removes n units whether or not the counter holds them; whatever it doesn't hold is owed and taken out of
+     * the next units added.
+     */
+    public void reduce(long n) {
+        if (n <= 0) {
+            return;
+        }
+        long taken = 0;
+        int home = home();
+        for (int i = 0; i <= mask && taken < n; i++) {
+            taken += takeFrom((home + i) & mask, n - taken);
+        }
+        if (taken < n) {
+            debt.addAndGet(n - taken);
+        }
+    }
+
+    /**
+     * Units currently held, net of any debt. Not an atomic snapshot while other threads are updating it.
+     */
+    public long sum() {
+        long sum = -debt.get();
+        for (int i = 0; i <= mask; i++) {
+            sum += cells.get(i * PAD);
+        }
+        return sum;
+    }
+
+    private long takeFrom(int cell, long wanted) {
+        int index = cell * PAD;
+        while (true) {
+            long current = cells.get(index);
+            if (current <= 0) {
+                return 0;
+            }
+            long take = Math.min(current, wanted);
+            if (cells.compareAndSet(index, current, current - take)) {
+                return take;
+            }
+        }
+    }
+
+    private void putBack(int cell, long amount) {
+        if (amount > 0) {
+            cells.getAndAdd(cell * PAD, amount);
+        }
+    }
+
+    private long payDebt(long n) {
+        while (n > 0) {
+            long owed = debt.get();
+            if (owed <= 0) {
+                return 0;
+            }
+            long paid = Math.min(owed, n);
+            if (debt.compareAndSet(owed, owed - paid)) {
+                return paid;
+            }
+        }
+        return 0;
+    }
+
+    private int home() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & mask;
+    }
+}
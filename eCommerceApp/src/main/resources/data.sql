@@ -1,2 +1,4 @@
-insert into item (name, price, description) values ('Round Widget', 2.99, 'A widget that is round');
-insert into item (name, price, description) values ('Square Widget', 1.99, 'A widget that is square');
\ No newline at end of file
+insert into item (name, price, description, last_modified) values ('Round Widget', 299, 'A widget that is round', current_timestamp);
+insert into item (name, price, description, last_modified) values ('Square Widget', 199, 'A widget that is square', current_timestamp);
+insert into item_stock (item_id, quantity) select 1, 1000 where not exists (select 1 from item_stock where item_id = 1);
+insert into item_stock (item_id, quantity) select 2, 1000 where not exists (select 1 from item_stock where item_id = 2);
\ No newline at end of file
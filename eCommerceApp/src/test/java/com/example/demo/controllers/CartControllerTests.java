@@ -4,20 +4,45 @@ package com.example.demo.controllers;
 import com.example.demo.TestUtils;
 import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
 import com.example.demo.model.persistence.User;
 import com.example.demo.model.persistence.repositories.CartRepository;
 import com.example.demo.model.persistence.repositories.ItemRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.requests.BatchModifyCartRequest;
+import com.example.demo.model.requests.CartOperation;
 import com.example.demo.model.requests.ModifyCartRequest;
+import com.example.demo.model.responses.BatchModifyCartResponse;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.CartService;
+import com.example.demo.service.CartStore;
+import com.example.demo.service.InventoryService;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.PlatformTransactionManager;
 
-import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Optional;
 
+import javax.persistence.EntityManagerFactory;
+
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class CartControllerTests {
@@ -30,12 +55,20 @@ public class CartControllerTests {
 
     private ItemRepository itemRepository = mock(ItemRepository.class);
 
+    private JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    private InventoryService inventoryService = new InventoryService(jdbcTemplate);
+
     @Before
     public void setup() {
         cartController = new CartController();
-        TestUtils.injectObjects(cartController, "cartRepository", cartRepository);
+        CartService cartService = new CartService(cartRepository, mock(PlatformTransactionManager.class), 3, 0, true, 16);
+        TestUtils.injectObjects(cartController, "cartStore",
+                new CartStore(cartService, cartRepository, inventoryService, mock(EntityManagerFactory.class), "sync",
+                        100, 600000));
         TestUtils.injectObjects(cartController, "userRepository", userRepository);
         TestUtils.injectObjects(cartController, "itemRepository", itemRepository);
+        TestUtils.injectObjects(cartController, "inventoryService", inventoryService);
     }
 
     /**
@@ -47,6 +80,7 @@ public class CartControllerTests {
 
         // Set up cart
         Cart cart = new Cart();
+        cart.setId(0L);
 
         // Set up user
         User user = new User();
@@ -59,7 +93,7 @@ public class CartControllerTests {
         item.setId(0L);
         item.setName("testItem");
         item.setDescription("This is a test item");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
 
         // Set up cart request
         ModifyCartRequest cartRequest = new ModifyCartRequest();
@@ -69,10 +103,11 @@ public class CartControllerTests {
 
         // Stubs
         when(userRepository.findByUsername(cartRequest.getUsername())).thenReturn(user);
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
         when(itemRepository.findById(cartRequest.getItemId())).thenReturn(Optional.of(item));
 
         // Call the add to cart method. Response should contain a new cart
-        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, null);
 
         // Assert that the response is not null and the response is good
         assertNotNull(response);
@@ -102,7 +137,7 @@ public class CartControllerTests {
         item.setId(0L);
         item.setName("testItem");
         item.setDescription("This is a test item");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
 
         // Set up cart request
         ModifyCartRequest cartRequest = new ModifyCartRequest();
@@ -113,7 +148,7 @@ public class CartControllerTests {
         when(userRepository.findByUsername(cartRequest.getUsername())).thenReturn(user);
 
         // Call the add to cart method.
-        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, null);
 
         // Assert that the response is not null and the response is NOT FOUND
         assertNotNull(response);
@@ -129,6 +164,7 @@ public class CartControllerTests {
 
         // Set up cart
         Cart cart = new Cart();
+        cart.setId(0L);
 
         // Set up user
         User user = new User();
@@ -149,7 +185,7 @@ public class CartControllerTests {
         when(itemRepository.findById(cartRequest.getItemId())).thenReturn(Optional.ofNullable(item));
 
         // Call the add to cart method.
-        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, null);
 
         // Assert that the response is not null and the response is NOT FOUND
         assertNotNull(response);
@@ -168,7 +204,7 @@ public class CartControllerTests {
         item.setId(0L);
         item.setName("testItem");
         item.setDescription("This is a test item");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
 
         // Set up cart
         Cart cart = new Cart();
@@ -189,10 +225,11 @@ public class CartControllerTests {
 
         // Stubs
         when(userRepository.findByUsername(cartRequest.getUsername())).thenReturn(user);
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
         when(itemRepository.findById(cartRequest.getItemId())).thenReturn(Optional.of(item));
 
         // Call the remove from cart method. Response should contain a cart
-        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest, null);
 
         // Assert that the response is not null and the response is good
         assertNotNull(response);
@@ -224,7 +261,7 @@ public class CartControllerTests {
         item.setId(0L);
         item.setName("testItem");
         item.setDescription("This is a test item");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
 
         // Set up cart request
         ModifyCartRequest cartRequest = new ModifyCartRequest();
@@ -235,7 +272,7 @@ public class CartControllerTests {
         when(userRepository.findByUsername(cartRequest.getUsername())).thenReturn(user);
 
         // Call the remove from cart method.
-        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest, null);
 
         // Assert that the response is not null and the response is NOT FOUND
         assertNotNull(response);
@@ -251,6 +288,7 @@ public class CartControllerTests {
 
         // Set up cart
         Cart cart = new Cart();
+        cart.setId(0L);
 
         // Set up user
         User user = new User();
@@ -271,10 +309,240 @@ public class CartControllerTests {
         when(itemRepository.findById(cartRequest.getItemId())).thenReturn(Optional.ofNullable(item));
 
         // Call the remove from cart method.
-        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest);
+        final ResponseEntity<Cart> response = cartController.removeFromcart(cartRequest, null);
 
         // Assert that the response is not null and the response is NOT FOUND
         assertNotNull(response);
         assertEquals(404, response.getStatusCodeValue());
     }
+
+    /**
+     * Test that the cart is loaded by the id carried in the token, without looking the user up by name
+     * @throws Exception
+     */
+    @Test
+    public void addToCart_principalCartIdTest() throws Exception {
+
+        // Set up cart
+        Cart cart = new Cart();
+        cart.setId(5L);
+
+        // Set up item
+        Item item = new Item();
+        item.setId(0L);
+        item.setName("testItem");
+        item.setDescription("This is a test item");
+        item.setPrice(Money.ofMinor(1000));
+
+        // Set up cart request and the principal built from the token
+        ModifyCartRequest cartRequest = new ModifyCartRequest();
+        cartRequest.setUsername("testUsername");
+        cartRequest.setItemId(item.getId());
+        cartRequest.setQuantity(2);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, cart.getId(), null, null);
+
+        // Stubs
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
+        when(itemRepository.findById(cartRequest.getItemId())).thenReturn(Optional.of(item));
+
+        // Call the add to cart method
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, principal);
+
+        // Assert that the cart was updated and the user table was never queried
+        assertNotNull(response);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(2, response.getBody().getItems().size());
+        verify(userRepository, never()).findByUsername(anyString());
+    }
+
+    /**
+     * Test that a user cannot modify the cart of another user
+     * @throws Exception
+     */
+    @Test
+    public void addToCart_otherUserForbiddenTest() throws Exception {
+
+        // Set up cart request for a different user than the one in the token
+        ModifyCartRequest cartRequest = new ModifyCartRequest();
+        cartRequest.setUsername("someoneElse");
+        cartRequest.setItemId(0L);
+        cartRequest.setQuantity(1);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 5L, null, null);
+
+        // Call the add to cart method.
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, principal);
+
+        // Assert that the response is FORBIDDEN
+        assertNotNull(response);
+        assertEquals(403, response.getStatusCodeValue());
+    }
+
+    /**
+     * Test that the cart is returned with an ETag, and that presenting the tag again gets a 304 without the
+     * cart being loaded
+     * @throws Exception
+     */
+    @Test
+    public void getCart_etagTest() throws Exception {
+
+        // Set up cart
+        Cart cart = new Cart();
+        cart.setId(5L);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, cart.getId(), null, null);
+
+        // Stubs
+        when(cartRepository.findVersionById(cart.getId())).thenReturn(3L);
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
+
+        // First read returns the cart and its tag
+        final ResponseEntity<Cart> response = cartController.getCart("testUsername", null, principal);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(cart, response.getBody());
+        String etag = response.getHeaders().getETag();
+        assertEquals("\"3\"", etag);
+
+        // Reading again with the tag is not modified and doesn't load the cart
+        final ResponseEntity<Cart> notModified = cartController.getCart("testUsername", "W/" + etag, principal);
+        assertEquals(304, notModified.getStatusCodeValue());
+        assertNull(notModified.getBody());
+        assertEquals(etag, notModified.getHeaders().getETag());
+        verify(cartRepository, times(1)).findWithLinesById(cart.getId());
+
+        // Once the cart changes the old tag no longer matches
+        when(cartRepository.findVersionById(cart.getId())).thenReturn(4L);
+        final ResponseEntity<Cart> changed = cartController.getCart("testUsername", etag, principal);
+        assertEquals(200, changed.getStatusCodeValue());
+        assertEquals("\"4\"", changed.getHeaders().getETag());
+    }
+
+    /**
+     * Test that a batch resolves all items with one lookup, saves the cart once and reports operations it skipped
+     * @throws Exception
+     */
+    @Test
+    public void batchModify_appliesOperationsTest() throws Exception {
+        Item item = new Item();
+        item.setId(1L);
+        item.setName("testItem");
+        item.setPrice(Money.ofMinor(1000));
+
+        Cart cart = new Cart();
+        cart.setId(5L);
+        cart.addItem(item, 1);
+
+        BatchModifyCartRequest request = new BatchModifyCartRequest();
+        request.setUsername("testUsername");
+        request.setOperations(Arrays.asList(
+                operation(CartOperation.Type.ADD, 1L, 4),
+                operation(CartOperation.Type.ADD, 2L, 1),
+                operation(CartOperation.Type.REMOVE, 1L, 2),
+                operation(CartOperation.Type.SET_QUANTITY, 1L, 7)));
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, cart.getId(), null, null);
+
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
+        when(itemRepository.findAllById(anyIterable())).thenReturn(Collections.singletonList(item));
+
+        final ResponseEntity<BatchModifyCartResponse> response = cartController.batchModify(request, principal);
+
+        assertNotNull(response);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(7, response.getBody().getCart().getLine(1L).getQuantity());
+        assertEquals(Money.ofMinor(7000), response.getBody().getCart().getTotal());
+        assertEquals(1, response.getBody().getErrors().size());
+        assertEquals(1, response.getBody().getErrors().get(0).getIndex());
+        verify(itemRepository, times(1)).findAllById(anyIterable());
+        verify(itemRepository, never()).findById(anyLong());
+        verify(cartRepository, times(1)).saveAndFlush(cart);
+    }
+
+    private static CartOperation operation(CartOperation.Type type, long itemId, int quantity) {
+        CartOperation operation = new CartOperation();
+        operation.setType(type);
+        operation.setItemId(itemId);
+        operation.setQuantity(quantity);
+        return operation;
+    }
+
+    /**
+     * Test that an update losing to a concurrent one is retried on a fresh copy of the cart, and that the
+     * request gets a conflict once every attempt has lost
+     * @throws Exception
+     */
+    @Test
+    public void addToCart_retriesConcurrentUpdateTest() throws Exception {
+        Item item = new Item();
+        item.setId(0L);
+        item.setPrice(Money.ofMinor(1000));
+
+        Cart stale = new Cart();
+        stale.setId(5L);
+        Cart fresh = new Cart();
+        fresh.setId(5L);
+        fresh.addItem(item, 1);
+
+        ModifyCartRequest cartRequest = new ModifyCartRequest();
+        cartRequest.setUsername("testUsername");
+        cartRequest.setItemId(item.getId());
+        cartRequest.setQuantity(1);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 5L, null, null);
+
+        when(itemRepository.findById(item.getId())).thenReturn(Optional.of(item));
+        when(cartRepository.findWithLinesById(5L)).thenReturn(Optional.of(stale)).thenReturn(Optional.of(fresh));
+        when(cartRepository.saveAndFlush(stale)).thenThrow(new OptimisticLockingFailureException("stale"));
+
+        final ResponseEntity<Cart> response = cartController.addTocart(cartRequest, principal);
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertSame(fresh, response.getBody());
+        assertEquals(2, fresh.getLine(item.getId()).getQuantity());
+
+        when(cartRepository.findWithLinesById(5L)).thenReturn(Optional.of(stale));
+
+        assertEquals(409, cartController.addTocart(cartRequest, principal).getStatusCodeValue());
+    }
+
+    /**
+     * Test that adding to a cart reserves stock, that an add the remaining stock can't cover is refused without
+     * reserving anything, and that removing units hands their stock back
+     * @throws Exception
+     */
+    @Test
+    public void addToCart_reservesStockTest() throws Exception {
+        Item item = new Item();
+        item.setId(0L);
+        item.setPrice(Money.ofMinor(1000));
+
+        Cart cart = new Cart();
+        cart.setId(5L);
+
+        ModifyCartRequest cartRequest = new ModifyCartRequest();
+        cartRequest.setUsername("testUsername");
+        cartRequest.setItemId(item.getId());
+        cartRequest.setQuantity(2);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 5L, null, null);
+
+        // Three units of the item are in stock
+        ResultSet row = mock(ResultSet.class);
+        when(row.getLong(1)).thenReturn(item.getId());
+        when(row.getLong(2)).thenReturn(3L);
+        doAnswer(invocation -> {
+            invocation.<RowCallbackHandler>getArgument(1).processRow(row);
+            return null;
+        }).when(jdbcTemplate).query(eq("select item_id, quantity from item_stock"), any(RowCallbackHandler.class));
+        inventoryService.reconcile();
+
+        when(itemRepository.findById(item.getId())).thenReturn(Optional.of(item));
+        when(cartRepository.findWithLinesById(5L)).thenReturn(Optional.of(cart));
+
+        assertEquals(200, cartController.addTocart(cartRequest, principal).getStatusCodeValue());
+        assertEquals(1, inventoryService.available(item.getId()));
+
+        assertEquals(409, cartController.addTocart(cartRequest, principal).getStatusCodeValue());
+        assertEquals(1, inventoryService.available(item.getId()));
+        assertEquals(2, cart.getLine(item.getId()).getQuantity());
+
+        cartRequest.setQuantity(1);
+        assertEquals(200, cartController.removeFromcart(cartRequest, principal).getStatusCodeValue());
+        assertEquals(2, inventoryService.available(item.getId()));
+    }
 }
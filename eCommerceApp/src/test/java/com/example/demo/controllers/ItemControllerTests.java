@@ -2,12 +2,12 @@ package com.example.demo.controllers;
 
 import com.example.demo.TestUtils;
 import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
 import com.example.demo.model.persistence.repositories.ItemRepository;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.http.ResponseEntity;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -40,13 +40,13 @@ public class ItemControllerTests {
         item1.setId(0L);
         item1.setName("item1Name");
         item1.setDescription("This is item 1");
-        item1.setPrice(BigDecimal.valueOf(10.00));
+        item1.setPrice(Money.ofMinor(1000));
 
         Item item2 = new Item();
         item2.setId(1L);
         item2.setName("item2Name");
         item2.setDescription("This is item 2");
-        item2.setPrice(BigDecimal.valueOf(20.00));
+        item2.setPrice(Money.ofMinor(2000));
 
         List<Item> items = new ArrayList<>();
         items.add(item1);
@@ -81,7 +81,7 @@ public class ItemControllerTests {
         item1.setId(0L);
         item1.setName("item1Name");
         item1.setDescription("This is item 1");
-        item1.setPrice(BigDecimal.valueOf(10.00));
+        item1.setPrice(Money.ofMinor(1000));
 
         // Set up test ID
         long id = 0L;
@@ -114,7 +114,7 @@ public class ItemControllerTests {
         item1.setId(0L);
         item1.setName("item1Name");
         item1.setDescription("This is item 1");
-        item1.setPrice(BigDecimal.valueOf(10.00));
+        item1.setPrice(Money.ofMinor(1000));
 
         List<Item> items = new ArrayList<>();
         items.add(item1);
@@ -3,21 +3,46 @@ package com.example.demo.controllers;
 import com.example.demo.TestUtils;
 import com.example.demo.model.persistence.Cart;
 import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.OrderLine;
 import com.example.demo.model.persistence.User;
 import com.example.demo.model.persistence.UserOrder;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
 import com.example.demo.model.persistence.repositories.OrderRepository;
+import com.example.demo.model.persistence.repositories.SubmissionKeyRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.CartStore;
+import com.example.demo.service.InventoryService;
+import com.example.demo.service.OrderIdGenerator;
+import com.example.demo.service.OrderQueue;
+import com.example.demo.service.OrderService;
+import com.example.demo.service.OrderStatsService;
+import com.example.demo.service.SubmissionKeyService;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.http.ResponseEntity;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
 
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OrderControllerTest {
@@ -28,11 +53,30 @@ public class OrderControllerTest {
 
     private UserRepository userRepository = mock(UserRepository.class);
 
+    private CartRepository cartRepository = mock(CartRepository.class);
+
+    private CartStore cartStore = mock(CartStore.class);
+
+    private JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
     @Before
     public void setup() {
         orderController = new OrderController();
+        SubmissionKeyRepository submissionKeyRepository = mock(SubmissionKeyRepository.class);
+        when(submissionKeyRepository.findById(anyString())).thenReturn(Optional.empty());
+        SubmissionKeyService submissionKeyService = new SubmissionKeyService(submissionKeyRepository, jdbcTemplate,
+                60000, 100);
+        OrderService orderService = new OrderService(cartRepository, orderRepository, cartStore,
+                new InventoryService(jdbcTemplate), mock(ItemRepository.class), mock(OrderQueue.class),
+                mock(OrderIdGenerator.class), mock(OrderStatsService.class), submissionKeyService,
+                mock(PlatformTransactionManager.class), "sync");
+        // The cart store runs the order placement as given, as the write-through store does
+        when(cartStore.checkout(anyLong(), any())).thenAnswer(invocation ->
+                invocation.<Supplier<?>>getArgument(1).get());
         TestUtils.injectObjects(orderController, "orderRepository", orderRepository);
         TestUtils.injectObjects(orderController, "userRepository", userRepository);
+        TestUtils.injectObjects(orderController, "orderService", orderService);
+        TestUtils.injectObjects(orderController, "submissionKeyService", submissionKeyService);
     }
 
     /**
@@ -51,7 +95,7 @@ public class OrderControllerTest {
         // Set up an item for the cart
         item.setId(0l);
         item.setName("testItem");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
         item.setDescription("This is a test item");
 
         // Set the items for the cart
@@ -63,27 +107,70 @@ public class OrderControllerTest {
         user.setUsername(username);
         user.setCart(cart);
 
-        // Stub the usage of the findByUsername method in the controller
-        when(userRepository.findByUsername(username)).thenReturn(user);
+        // Stub the cart id lookup by username and the cart lookup in the controller
+        when(userRepository.findCartIdByUsername(username)).thenReturn(cart.getId());
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
 
         // Submit via the controller. Response is expected to hold a user order entity
-        final ResponseEntity<UserOrder> response = orderController.submit(username);
+        final ResponseEntity<?> response = orderController.submit(username, null, null);
+
+        // Assert that the order was placed through the cart store's checkout, and the cart was emptied
+        verify(cartStore).checkout(eq(cart.getId()), any());
+        assertTrue(cart.getLines().isEmpty());
 
         // Assert that the response is not null and the response code it 200.
         assertNotNull(response);
         assertEquals(200, response.getStatusCodeValue());
 
         // Get the user order from the response
-        UserOrder order = response.getBody();
+        UserOrder order = (UserOrder) response.getBody();
 
         // Asset the order is not empty
         assertNotNull(order);
         // Assert that the order contains the item and the total is correct
         assertEquals("testItem", order.getItems().get(0).getName());
-        assertEquals(BigDecimal.valueOf(10.00), order.getTotal());
+        assertEquals(Money.ofMinor(1000), order.getTotal());
 
     }
 
+    /**
+     * Test that a retry with the same idempotency key gets the first order back without placing another
+     * @throws Exception
+     */
+    @Test
+    public void submitOrder_idempotencyKeyReplayTest() throws Exception {
+        String username = "testUsername";
+        Item item = new Item();
+        item.setId(0l);
+        item.setName("testItem");
+        item.setPrice(Money.ofMinor(1000));
+        Cart cart = new Cart();
+        cart.setId(0L);
+        cart.addItem(item);
+        JWTPrincipal principal = new JWTPrincipal(username, 7L, cart.getId(), null, null);
+        when(cartRepository.findWithLinesById(cart.getId())).thenReturn(Optional.of(cart));
+        when(orderRepository.save(any(UserOrder.class))).thenAnswer(invocation -> {
+            UserOrder order = invocation.getArgument(0);
+            order.setId(11L);
+            return order;
+        });
+
+        final ResponseEntity<?> first = orderController.submit(username, "retry-1", principal);
+        UserOrder placed = (UserOrder) first.getBody();
+        when(orderRepository.findWithLinesByIdIn(Collections.singletonList(11L)))
+                .thenReturn(Collections.singletonList(placed));
+        final ResponseEntity<?> retry = orderController.submit(username, "retry-1", principal);
+
+        assertEquals(200, first.getStatusCodeValue());
+        assertEquals(200, retry.getStatusCodeValue());
+        assertSame(placed, retry.getBody());
+        verify(orderRepository, times(1)).save(any(UserOrder.class));
+        // The key was recorded by the order's own transaction
+        verify(jdbcTemplate).update(startsWith("insert into submission_key"), eq("7:retry-1"), eq(11L), eq(false),
+                any(Date.class));
+        assertEquals(400, orderController.submit(username, "", principal).getStatusCodeValue());
+    }
+
     /**
      * Test that the correct response is returned if submitting an order for a null user
      * @throws Exception
@@ -98,7 +185,7 @@ public class OrderControllerTest {
         when(userRepository.findByUsername(username)).thenReturn(user);
 
         // Submit via the controller. Response is expected to hold a user order entity
-        final ResponseEntity<UserOrder> response = orderController.submit(username);
+        final ResponseEntity<?> response = orderController.submit(username, null, null);
 
         // Assert that the response is not null and the response code is 404 (NOT FOUND).
         assertNotNull(response);
@@ -122,22 +209,22 @@ public class OrderControllerTest {
         // Set up an item for the order
         item.setId(0l);
         item.setName("testItem");
-        item.setPrice(BigDecimal.valueOf(10.00));
+        item.setPrice(Money.ofMinor(1000));
         item.setDescription("This is a test item");
 
-        // Create list of items for order
-        List<Item> items = new ArrayList<>();
-        items.add(item);
+        // Create list of lines for order
+        List<OrderLine> lines = new ArrayList<>();
+        lines.add(new OrderLine(item.getId(), item.getName(), item.getPrice(), 1));
 
         // Set the username and cart for the test user
         user.setId(0L);
         user.setUsername(username);
 
         // Set up the user order
-        order.setItems(items);
+        order.setLines(lines);
         order.setUser(user);
         order.setId(0L);
-        order.setTotal(BigDecimal.valueOf(10.00));
+        order.setTotal(Money.ofMinor(1000));
 
         // Create a list of orders
         List<UserOrder> userOrders = new ArrayList<>();
@@ -149,7 +236,7 @@ public class OrderControllerTest {
         when(orderRepository.findByUser(user)).thenReturn(userOrders);
 
         // Get orders via the controller. The response is expected to hold a list of orders
-        final ResponseEntity<List<UserOrder>> response = orderController.getOrdersForUser(username);
+        final ResponseEntity<List<UserOrder>> response = orderController.getOrdersForUser(username, null);
 
         // Assert that the response is not null and the response is good
         assertNotNull(response);
@@ -181,10 +268,53 @@ public class OrderControllerTest {
         when(userRepository.findByUsername(username)).thenReturn(user);
 
         // Get orders via the controller. Response is expected to hold a list of user orders
-        final ResponseEntity<List<UserOrder>> response = orderController.getOrdersForUser(username);
+        final ResponseEntity<List<UserOrder>> response = orderController.getOrdersForUser(username, null);
 
         // Assert that the response is not null and the response code is 404 (NOT FOUND).
         assertNotNull(response);
         assertEquals(404, response.getStatusCodeValue());
     }
+
+    /**
+     * Test that order history is loaded by the user id carried in the token
+     * @throws Exception
+     */
+    @Test
+    public void getOrders_principalUserIdTest() throws Exception {
+        // Set up test username and the principal built from the token
+        String username = "testUsername";
+        JWTPrincipal principal = new JWTPrincipal(username, 7L, 3L, null, null);
+
+        // Set up a single order
+        UserOrder order = new UserOrder();
+        order.setId(0L);
+        List<UserOrder> userOrders = new ArrayList<>();
+        userOrders.add(order);
+
+        // Stub the lookup by user id
+        when(orderRepository.findByUserId(7L)).thenReturn(userOrders);
+
+        // Get orders via the controller
+        final ResponseEntity<List<UserOrder>> response = orderController.getOrdersForUser(username, principal);
+
+        // Assert that the orders are returned and the user table was never queried
+        assertNotNull(response);
+        assertEquals(200, response.getStatusCodeValue());
+        assertEquals(1, response.getBody().size());
+        verify(userRepository, never()).findByUsername(anyString());
+    }
+
+    /**
+     * Test that a user cannot submit an order for another user
+     * @throws Exception
+     */
+    @Test
+    public void submitOrder_otherUserForbiddenTest() throws Exception {
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 7L, 3L, null, null);
+
+        final ResponseEntity<?> response = orderController.submit("someoneElse", null, principal);
+
+        assertNotNull(response);
+        assertEquals(403, response.getStatusCodeValue());
+    }
 }
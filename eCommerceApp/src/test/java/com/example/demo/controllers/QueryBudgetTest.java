@@ -0,0 +1,165 @@
+package com.example.demo.controllers;
+
+import com.example.demo.SqlStatementCounter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * Runs each endpoint through the full filter chain and fails when it issues more SQL statements than its
+ * budget. The budgets are for the write-through cart store, which is the worst case; write-behind only ever
+ * does fewer round trips.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "spring.jpa.properties.hibernate.session_factory.statement_inspector=com.example.demo.SqlStatementCounter",
+        "cart.store.mode=sync"})
+@AutoConfigureMockMvc
+public class QueryBudgetTest {
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Autowired
+    private MockMvc mvc;
+
+    private String username;
+    private String token;
+
+    @Before
+    public void setup() throws Exception {
+        username = "budget" + USERS.incrementAndGet();
+        String credentials = "{\"username\":\"" + username + "\",\"password\":\"budgetPassword1\"}";
+        mvc.perform(post("/api/user/create").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"password\":\"budgetPassword1\","
+                        + "\"confirmPassword\":\"budgetPassword1\"}"));
+        token = mvc.perform(post("/login").contentType(MediaType.APPLICATION_JSON).content(credentials))
+                .andReturn().getResponse().getHeader(HttpHeaders.AUTHORIZATION);
+        assertNotNull(token);
+    }
+
+    /**
+     * Test that cart reads and edits load the cart, its lines and their items together
+     * @throws Exception
+     */
+    @Test
+    public void cartEndpointsTest() throws Exception {
+        addToCart(1, 2);
+        addToCart(2, 1);
+
+        assertBudget(4, post("/api/cart/addToCart").header(HttpHeaders.AUTHORIZATION, token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"itemId\":1,\"quantity\":1}"));
+        assertBudget(2, get("/api/cart/" + username).header(HttpHeaders.AUTHORIZATION, token));
+        assertBudget(4, post("/api/cart/removeFromCart").header(HttpHeaders.AUTHORIZATION, token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"itemId\":2,\"quantity\":1}"));
+    }
+
+    /**
+     * Test that submitting loads the cart in one query, that order history is one query however many orders
+     * and items there are, that paging and streaming return the same orders, and that an idempotent retry
+     * doesn't submit again
+     * @throws Exception
+     */
+    @Test
+    public void orderEndpointsTest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            addToCart(1, 2);
+            addToCart(2, 1);
+            // Cart, order row, one line row per distinct item, then one delete per cart line and the emptied
+            // cart. Stock and order stats are updated through JDBC, which the counter doesn't see. Order ids come
+            // from the sequence a block at a time, which costs two more statements for the first block and one
+            // for each after it
+            assertBudget(i == 0 ? 9 : 7, post("/api/order/submit/" + username).header(HttpHeaders.AUTHORIZATION, token));
+        }
+
+        MvcResult history = assertBudget(1, get("/api/order/history/" + username)
+                .header(HttpHeaders.AUTHORIZATION, token));
+        List<?> orders = new ObjectMapper().readValue(history.getResponse().getContentAsString(), List.class);
+        assertEquals(3, orders.size());
+        for (Object order : orders) {
+            assertEquals(3, ((List<?>) ((Map<?, ?>) order).get("items")).size());
+        }
+
+        // Ids first, then that page of orders with their lines
+        MvcResult first = assertBudget(2, get("/api/order/history/" + username + "/page?size=2")
+                .header(HttpHeaders.AUTHORIZATION, token));
+        Map<?, ?> page = new ObjectMapper().readValue(first.getResponse().getContentAsString(), Map.class);
+        assertEquals(2, ((List<?>) page.get("orders")).size());
+        assertEquals(((Map<?, ?>) orders.get(1)).get("id"), page.get("next"));
+        MvcResult last = assertBudget(2, get("/api/order/history/" + username + "/page?size=2&after=" + page.get("next"))
+                .header(HttpHeaders.AUTHORIZATION, token));
+        page = new ObjectMapper().readValue(last.getResponse().getContentAsString(), Map.class);
+        assertEquals(1, ((List<?>) page.get("orders")).size());
+        assertNull(page.get("next"));
+
+        MvcResult stream = mvc.perform(get("/api/order/history/" + username + "/stream")
+                .header(HttpHeaders.AUTHORIZATION, token)).andReturn();
+        stream = mvc.perform(asyncDispatch(stream)).andReturn();
+        assertEquals(200, stream.getResponse().getStatus());
+        String body = stream.getResponse().getContentAsString();
+        assertTrue(body.endsWith("}\n"));
+        String[] lines = body.split("\n");
+        assertEquals(3, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].startsWith("{"));
+            Map<?, ?> order = new ObjectMapper().readValue(lines[i], Map.class);
+            assertEquals(((Map<?, ?>) orders.get(i)).get("id"), order.get("id"));
+            assertEquals(3, ((List<?>) order.get("items")).size());
+            assertEquals(username, ((Map<?, ?>) order.get("user")).get("username"));
+        }
+
+        // A retry with the idempotency key of a placed order only reads that order back
+        addToCart(1, 1);
+        MvcResult placed = mvc.perform(post("/api/order/submit/" + username).header(HttpHeaders.AUTHORIZATION, token)
+                .header("Idempotency-Key", "budget-retry")).andReturn();
+        assertEquals(200, placed.getResponse().getStatus());
+        MvcResult replayed = assertBudget(1, post("/api/order/submit/" + username)
+                .header(HttpHeaders.AUTHORIZATION, token).header("Idempotency-Key", "budget-retry"));
+        assertEquals(placed.getResponse().getContentAsString(), replayed.getResponse().getContentAsString());
+    }
+
+    /**
+     * Test that looking a user up by name is a single query
+     * @throws Exception
+     */
+    @Test
+    public void userEndpointsTest() throws Exception {
+        assertBudget(1, get("/api/user/" + username).header(HttpHeaders.AUTHORIZATION, token));
+    }
+
+    private void addToCart(long itemId, int quantity) throws Exception {
+        mvc.perform(post("/api/cart/addToCart").header(HttpHeaders.AUTHORIZATION, token)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"username\":\"" + username + "\",\"itemId\":" + itemId + ",\"quantity\":" + quantity + "}"));
+    }
+
+    private MvcResult assertBudget(int budget, RequestBuilder request) throws Exception {
+        SqlStatementCounter.reset();
+        MvcResult result = mvc.perform(request).andReturn();
+        int statements = SqlStatementCounter.count();
+        assertEquals(200, result.getResponse().getStatus());
+        assertTrue(result.getRequest().getRequestURI() + " ran " + statements + " statements, budget is " + budget,
+                statements <= budget);
+        return result;
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.demo.controllers;
+
+import com.example.demo.TestUtils;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.responses.OrderStatsResponse;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.service.OrderStatsService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.ResponseEntity;
+
+import java.time.LocalDate;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StatsControllerTest {
+
+    private StatsController statsController;
+
+    private UserRepository userRepository = mock(UserRepository.class);
+
+    private OrderStatsService orderStatsService = mock(OrderStatsService.class);
+
+    @Before
+    public void setup() {
+        statsController = new StatsController();
+        TestUtils.injectObjects(statsController, "userRepository", userRepository);
+        TestUtils.injectObjects(statsController, "orderStatsService", orderStatsService);
+    }
+
+    /**
+     * Happy path test for a user's order stats, taking the user id from the token
+     * @throws Exception
+     */
+    @Test
+    public void getUserStats_happyPathTest() throws Exception {
+        OrderStatsResponse stats = new OrderStatsResponse(3, 7, Money.ofMinor(2093));
+        when(orderStatsService.user(7L)).thenReturn(stats);
+
+        final ResponseEntity<OrderStatsResponse> response = statsController.getUserStats("testUsername",
+                new JWTPrincipal("testUsername", 7L, 3L, null, null));
+
+        assertEquals(200, response.getStatusCodeValue());
+        assertSame(stats, response.getBody());
+        verify(userRepository, never()).findByUsername(anyString());
+    }
+
+    /**
+     * Test that a user cannot view another user's order stats, and that unknown users are not found
+     * @throws Exception
+     */
+    @Test
+    public void getUserStats_otherOrUnknownUserTest() throws Exception {
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 7L, 3L, null, null);
+        when(userRepository.findByUsername("nobody")).thenReturn(null);
+
+        assertEquals(403, statsController.getUserStats("someoneElse", principal).getStatusCodeValue());
+        assertEquals(404, statsController.getUserStats("nobody", null).getStatusCodeValue());
+        verify(orderStatsService, never()).user(anyLong());
+    }
+
+    /**
+     * Happy path test for item and daily order stats
+     * @throws Exception
+     */
+    @Test
+    public void getItemAndDailyStats_happyPathTest() throws Exception {
+        LocalDate day = LocalDate.of(2026, 10, 18);
+        when(orderStatsService.item(1L)).thenReturn(new OrderStatsResponse(2, 5, Money.ofMinor(1495)));
+        when(orderStatsService.day(day)).thenReturn(new OrderStatsResponse(4, 9, Money.ofMinor(2491)));
+
+        assertEquals(5, statsController.getItemStats(1L).getBody().getUnits());
+        assertEquals(4, statsController.getDailyStats(day).getBody().getOrders());
+    }
+}
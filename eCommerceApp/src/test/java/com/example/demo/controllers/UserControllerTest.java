@@ -2,19 +2,32 @@ package com.example.demo.controllers;
 
 import com.example.demo.TestUtils;
 import com.example.demo.model.persistence.User;
-import com.example.demo.model.persistence.repositories.CartRepository;
 import com.example.demo.model.persistence.repositories.UserRepository;
 import com.example.demo.model.requests.CreateUserRequest;
+import com.example.demo.model.responses.BulkCreateUserResponse;
+import com.example.demo.security.JWTPrincipal;
+import com.example.demo.security.PasswordHashingRejectedException;
+import com.example.demo.security.TokenRevocationService;
+import com.example.demo.service.UserProvisioningService;
+import com.example.demo.service.UsernameIndex;
 import net.bytebuddy.dynamic.DynamicType;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.userdetails.UserCache;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Date;
 import java.util.Optional;
 
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class UserControllerTest {
@@ -23,16 +36,25 @@ public class UserControllerTest {
 
     private UserRepository userRepository = mock(UserRepository.class);
 
-    private CartRepository cartRepository = mock(CartRepository.class);
+    private UsernameIndex usernameIndex = mock(UsernameIndex.class);
 
     private BCryptPasswordEncoder encoder = mock(BCryptPasswordEncoder.class);
 
+    private UserCache userCache = mock(UserCache.class);
+
+    private TokenRevocationService tokenRevocationService = mock(TokenRevocationService.class);
+
+    private UserProvisioningService userProvisioningService = mock(UserProvisioningService.class);
+
     @Before
     public void setup() {
         userController = new UserController();
         TestUtils.injectObjects(userController,"userRepository", userRepository);
-        TestUtils.injectObjects(userController, "cartRepository", cartRepository);
-        TestUtils.injectObjects(userController, "bCryptPasswordEncoder", encoder);
+        TestUtils.injectObjects(userController, "usernameIndex", usernameIndex);
+        TestUtils.injectObjects(userController, "passwordEncoder", encoder);
+        TestUtils.injectObjects(userController, "userCache", userCache);
+        TestUtils.injectObjects(userController, "tokenRevocationService", tokenRevocationService);
+        TestUtils.injectObjects(userController, "userProvisioningService", userProvisioningService);
     }
 
     /**
@@ -62,9 +84,34 @@ public class UserControllerTest {
         assertEquals(0, user.getId());
         assertEquals("test", user.getUsername());
         assertEquals("thisIsHashed", user.getPassword());
+        verify(userCache).removeUserFromCache("test");
+        verify(usernameIndex).add("test");
+        verify(userRepository, never()).existsByUsername("test");
 
     }
 
+    /**
+     * Test that a taken username is rejected before the password is hashed
+     * @throws Exception
+     */
+    @Test
+    public void createUser_usernameTakenTest() throws Exception {
+        when(usernameIndex.mightExist("test")).thenReturn(true);
+        when(userRepository.existsByUsername("test")).thenReturn(true);
+
+        CreateUserRequest request = new CreateUserRequest();
+        request.setUsername("test");
+        request.setPassword("testPassword");
+        request.setConfirmPassword("testPassword");
+
+        final ResponseEntity<User> response = userController.createUser(request);
+
+        assertNotNull(response);
+        assertEquals(409, response.getStatusCodeValue());
+        verify(encoder, never()).encode(anyString());
+        verify(userRepository, never()).save(any(User.class));
+    }
+
     /**
      * Test that the correct response is received if submitted password is
      * too short.
@@ -82,9 +129,31 @@ public class UserControllerTest {
 
         assertNotNull(response);
         assertEquals(400, response.getStatusCodeValue());
+        verify(encoder, never()).encode(anyString());
+        verify(userRepository, never()).save(any(User.class));
 
     }
 
+    /**
+     * Test that signup is turned away with 503 when the password hashing pool is saturated
+     * @throws Exception
+     */
+    @Test
+    public void createUser_hashingPoolSaturatedTest() throws Exception {
+        when(encoder.encode("testPassword")).thenThrow(new PasswordHashingRejectedException("full", 2, null));
+
+        CreateUserRequest request = new CreateUserRequest();
+        request.setUsername("test");
+        request.setPassword("testPassword");
+        request.setConfirmPassword("testPassword");
+
+        final ResponseEntity<User> response = userController.createUser(request);
+
+        assertNotNull(response);
+        assertEquals(503, response.getStatusCodeValue());
+        assertEquals("2", response.getHeaders().getFirst("Retry-After"));
+    }
+
     /**
      * Happy path test for finding a user by ID
      * @throws Exception
@@ -150,4 +219,49 @@ public class UserControllerTest {
         assertEquals(404, response.getStatusCodeValue());
 
     }
+
+    /**
+     * Test that logging out revokes the token the request was made with
+     * @throws Exception
+     */
+    @Test
+    public void logout_revokesTokenTest() throws Exception {
+        Date expiresAt = new Date();
+        JWTPrincipal principal = new JWTPrincipal("test", 0L, 1L, "token-id", expiresAt);
+
+        final ResponseEntity<Void> response = userController.logout(principal);
+
+        assertNotNull(response);
+        assertEquals(204, response.getStatusCodeValue());
+        verify(tokenRevocationService).revoke("token-id", expiresAt);
+    }
+
+    /**
+     * Test that a token without an id cannot be revoked
+     * @throws Exception
+     */
+    @Test
+    public void logout_tokenWithoutIdTest() throws Exception {
+        JWTPrincipal principal = new JWTPrincipal("test", 0L, 1L, null, null);
+
+        final ResponseEntity<Void> response = userController.logout(principal);
+
+        assertNotNull(response);
+        assertEquals(400, response.getStatusCodeValue());
+    }
+
+    /**
+     * Test that bulk creation is not served unless provisioning is enabled
+     * @throws Exception
+     */
+    @Test
+    public void bulkCreate_disabledTest() throws Exception {
+        when(userProvisioningService.isEnabled()).thenReturn(false);
+
+        final ResponseEntity<BulkCreateUserResponse> response =
+                userController.bulkCreate(new ByteArrayInputStream("[]".getBytes()));
+
+        assertEquals(404, response.getStatusCodeValue());
+        verify(userProvisioningService, never()).provision(any(InputStream.class));
+    }
 }
@@ -0,0 +1,39 @@
+package com.example.demo.model.persistence;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CartTest {
+
+    /**
+     * Test that adding many units of an item keeps a single cart line and removing more than the cart holds
+     * only subtracts what was there
+     * @throws Exception
+     */
+    @Test
+    public void addAndRemove_quantityLineTest() throws Exception {
+        Item item = new Item();
+        item.setId(0L);
+        item.setName("testItem");
+        item.setDescription("This is a test item");
+        item.setPrice(Money.ofMinor(250));
+
+        Cart cart = new Cart();
+        cart.addItem(item, 500);
+
+        assertEquals(1, cart.getLines().size());
+        assertEquals(500, cart.getLine(item.getId()).getQuantity());
+        assertEquals(500, cart.getItems().size());
+        assertEquals(Money.ofMinor(125000), cart.getTotal());
+
+        Item other = new Item();
+        other.setId(1L);
+        other.setPrice(Money.ofMinor(999));
+        cart.removeItem(other, 1);
+        cart.removeItem(item, 501);
+
+        assertTrue(cart.getLines().isEmpty());
+        assertEquals(Money.ZERO, cart.getTotal());
+    }
+}
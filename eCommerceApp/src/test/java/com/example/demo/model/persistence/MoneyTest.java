@@ -0,0 +1,52 @@
+package com.example.demo.model.persistence;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+import static org.junit.Assert.*;
+
+public class MoneyTest {
+
+    /**
+     * Test that decimal amounts convert to and from minor units exactly
+     * @throws Exception
+     */
+    @Test
+    public void decimalConversionTest() throws Exception {
+        Money price = Money.of(new BigDecimal("2.99"));
+
+        assertEquals(299, price.getMinorUnits());
+        assertEquals(new BigDecimal("2.99"), price.toBigDecimal());
+        assertEquals(Money.ofMinor(1495), price.times(5));
+        assertEquals(Money.ZERO, price.minus(price));
+    }
+
+    /**
+     * Test that an amount with more decimals than the currency allows is refused rather than rounded
+     * @throws Exception
+     */
+    @Test(expected = ArithmeticException.class)
+    public void fractionalMinorUnitTest() throws Exception {
+        Money.of(new BigDecimal("0.001"));
+    }
+
+    /**
+     * Test that arithmetic fails instead of wrapping around on overflow
+     * @throws Exception
+     */
+    @Test(expected = ArithmeticException.class)
+    public void overflowTest() throws Exception {
+        Money.ofMinor(Long.MAX_VALUE / 2 + 1).times(2);
+    }
+
+    /**
+     * Test that amounts in different currencies can't be added
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void currencyMismatchTest() throws Exception {
+        Money.ofMinor(100).plus(Money.ofMinor(100, Currency.getInstance("EUR")));
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.demo.security;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks over a real connection that requests relayed by a trusted proxy are rate limited per forwarded client
+ * rather than all sharing the proxy's bucket. The tests connect from localhost, which is the trusted proxy.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "security.rate-limit.groups.login.capacity=2", "security.rate-limit.groups.login.refill-per-second=0.001"})
+public class ForwardedClientAddressTest {
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    /**
+     * Test that each forwarded client gets its own login bucket behind the proxy
+     * @throws Exception
+     */
+    @Test
+    public void login_limitedPerForwardedClientTest() throws Exception {
+        assertNotEquals(HttpStatus.TOO_MANY_REQUESTS, login("203.0.113.7"));
+        assertNotEquals(HttpStatus.TOO_MANY_REQUESTS, login("203.0.113.7"));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, login("203.0.113.7"));
+
+        assertNotEquals(HttpStatus.TOO_MANY_REQUESTS, login("198.51.100.9"));
+        // The client is the rightmost address the trusted proxy didn't add itself
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, login("198.51.100.9, 203.0.113.7"));
+    }
+
+    private HttpStatus login(String forwardedFor) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.set("X-Forwarded-For", forwardedFor);
+        // A fresh username each time, so only the per-IP bucket can run out
+        String body = "{\"username\":\"forwarded" + USERS.incrementAndGet() + "\",\"password\":\"wrongPassword\"}";
+        return restTemplate.postForEntity("/login", new HttpEntity<>(body, headers), String.class).getStatusCode();
+    }
+}
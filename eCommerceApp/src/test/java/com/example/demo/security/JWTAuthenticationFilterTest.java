@@ -0,0 +1,99 @@
+package com.example.demo.security;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class JWTAuthenticationFilterTest {
+
+    private AuthenticationManager authenticationManager = mock(AuthenticationManager.class);
+
+    private RateLimiter rateLimiter = mock(RateLimiter.class);
+
+    private JWTAuthenticationFilter filter;
+
+    @Before
+    public void setup() {
+        filter = new JWTAuthenticationFilter(authenticationManager, rateLimiter);
+    }
+
+    /**
+     * Happy path test that the credentials in the body are passed to the authentication manager
+     * @throws Exception
+     */
+    @Test
+    public void attemptAuthentication_happyPathTest() throws Exception {
+        MockHttpServletRequest request = loginRequest("{\"username\":\"test\",\"password\":\"testPassword\",\"extra\":1}");
+
+        filter.attemptAuthentication(request, new MockHttpServletResponse());
+
+        ArgumentCaptor<Authentication> captor = ArgumentCaptor.forClass(Authentication.class);
+        verify(authenticationManager).authenticate(captor.capture());
+        assertEquals("test", captor.getValue().getPrincipal());
+        assertEquals("testPassword", captor.getValue().getCredentials());
+    }
+
+    /**
+     * Test that a body that isn't valid JSON is rejected with 400
+     * @throws Exception
+     */
+    @Test
+    public void attemptAuthentication_malformedBodyTest() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        Authentication result = filter.attemptAuthentication(loginRequest("{\"username\":"), response);
+
+        assertNull(result);
+        assertEquals(400, response.getStatus());
+        verify(authenticationManager, never()).authenticate(any(UsernamePasswordAuthenticationToken.class));
+    }
+
+    /**
+     * Test that a body missing the password is rejected with 400
+     * @throws Exception
+     */
+    @Test
+    public void attemptAuthentication_missingPasswordTest() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.attemptAuthentication(loginRequest("{\"username\":\"test\"}"), response);
+
+        assertEquals(400, response.getStatus());
+    }
+
+    /**
+     * Test that an oversized body is rejected with 413 without being parsed
+     * @throws Exception
+     */
+    @Test
+    public void attemptAuthentication_oversizedBodyTest() throws Exception {
+        char[] padding = new char[JWTAuthenticationFilter.MAX_LOGIN_BODY_BYTES];
+        Arrays.fill(padding, 'a');
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.attemptAuthentication(loginRequest("{\"username\":\"" + new String(padding) + "\"}"), response);
+
+        assertEquals(413, response.getStatus());
+        verify(authenticationManager, never()).authenticate(any(UsernamePasswordAuthenticationToken.class));
+    }
+
+    private static MockHttpServletRequest loginRequest(String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/login");
+        request.setContentType("application/json");
+        request.setContent(body.getBytes());
+        return request;
+    }
+}
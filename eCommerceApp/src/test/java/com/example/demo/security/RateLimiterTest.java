@@ -0,0 +1,97 @@
+package com.example.demo.security;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private RateLimitProperties properties;
+
+    private RateLimiter rateLimiter;
+
+    @Before
+    public void setup() {
+        RateLimitProperties.Limit limit = new RateLimitProperties.Limit();
+        limit.setCapacity(3);
+        limit.setRefillPerSecond(0.5);
+        RateLimitProperties.Limit fast = new RateLimitProperties.Limit();
+        fast.setCapacity(1);
+        fast.setRefillPerSecond(1000);
+        properties = new RateLimitProperties();
+        properties.getGroups().put("login", limit);
+        properties.getGroups().put("fast", fast);
+        rateLimiter = new RateLimiter(properties);
+    }
+
+    /**
+     * Test that a burst up to the capacity is allowed and the next request is told when to retry
+     * @throws Exception
+     */
+    @Test
+    public void tryAcquire_burstThenRejectTest() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("login", "ip:1.2.3.4"));
+        }
+        long retryAfter = rateLimiter.tryAcquire("login", "ip:1.2.3.4");
+        assertTrue(retryAfter >= 1 && retryAfter <= 2);
+
+        // Other keys have their own buckets
+        assertEquals(0, rateLimiter.tryAcquire("login", "ip:5.6.7.8"));
+    }
+
+    /**
+     * Test that groups without a configured limit are not throttled
+     * @throws Exception
+     */
+    @Test
+    public void tryAcquire_unconfiguredGroupTest() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("cart", "user:test"));
+        }
+        assertEquals(0, rateLimiter.size());
+    }
+
+    /**
+     * Test that the sweep keeps buckets that still have tokens owed
+     * @throws Exception
+     */
+    @Test
+    public void sweep_keepsActiveBucketsTest() throws Exception {
+        rateLimiter.tryAcquire("login", "ip:1.2.3.4");
+        rateLimiter.sweep();
+        assertEquals(1, rateLimiter.size());
+    }
+
+    /**
+     * Test that once the map is full a new key takes the place of a refilled bucket, and that while every bucket
+     * is active new keys share one bucket per group instead of evicting the throttled clients
+     * @throws Exception
+     */
+    @Test
+    public void tryAcquire_fullMapTest() throws Exception {
+        properties.setMaxBuckets(2);
+        rateLimiter.tryAcquire("fast", "ip:1.1.1.1");
+        for (int i = 0; i < 3; i++) {
+            rateLimiter.tryAcquire("login", "ip:1.2.3.4");
+        }
+        Thread.sleep(10);
+
+        // The fast bucket has refilled, so it makes room
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("login", "ip:5.6.7.8"));
+        }
+        assertEquals(2, rateLimiter.size());
+
+        // Both buckets are owed tokens: newcomers share the group's overflow bucket
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("login", "ip:9.9.9." + i));
+        }
+        assertTrue(rateLimiter.tryAcquire("login", "ip:9.9.9.9") > 0);
+        assertEquals(2, rateLimiter.size());
+        // The clients already throttled stay throttled
+        assertTrue(rateLimiter.tryAcquire("login", "ip:1.2.3.4") > 0);
+        assertTrue(rateLimiter.tryAcquire("login", "ip:5.6.7.8") > 0);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.demo.security;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UpgradingBCryptPasswordEncoderTest {
+
+    /**
+     * Test that hashes stored at a lower cost are flagged for upgrade and current ones are not
+     * @throws Exception
+     */
+    @Test
+    public void upgradeEncoding_lowerCostTest() throws Exception {
+        String weakHash = new UpgradingBCryptPasswordEncoder(4).encode("testPassword");
+        UpgradingBCryptPasswordEncoder encoder = new UpgradingBCryptPasswordEncoder(5);
+
+        assertTrue(encoder.upgradeEncoding(weakHash));
+        assertFalse(encoder.upgradeEncoding(encoder.encode("testPassword")));
+        // Old hashes must still verify until they are upgraded
+        assertTrue(encoder.matches("testPassword", weakHash));
+    }
+
+    /**
+     * Test that anything that isn't a bcrypt hash is left alone
+     * @throws Exception
+     */
+    @Test
+    public void upgradeEncoding_notBcryptTest() throws Exception {
+        UpgradingBCryptPasswordEncoder encoder = new UpgradingBCryptPasswordEncoder(5);
+
+        assertFalse(encoder.upgradeEncoding(null));
+        assertFalse(encoder.upgradeEncoding("plainText"));
+        assertEquals(-1, UpgradingBCryptPasswordEncoder.costOf("$2a$x1$abc"));
+        assertEquals(12, UpgradingBCryptPasswordEncoder.costOf("$2a$12$abcdefghijklmnopqrstuv"));
+    }
+
+    /**
+     * Test that calibration stays within the configured bounds
+     * @throws Exception
+     */
+    @Test
+    public void calibrated_withinBoundsTest() throws Exception {
+        UpgradingBCryptPasswordEncoder encoder = UpgradingBCryptPasswordEncoder.calibrated(0, 4, 6);
+
+        assertEquals(4, encoder.getStrength());
+    }
+}
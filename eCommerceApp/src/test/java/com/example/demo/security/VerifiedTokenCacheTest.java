@@ -0,0 +1,76 @@
+package com.example.demo.security;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class VerifiedTokenCacheTest {
+
+    /**
+     * Test that a cached token is answered until its own expiry, and counted as a miss after it
+     * @throws Exception
+     */
+    @Test
+    public void get_expiresWithTokenTest() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(100, 300);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 2L, "jti", null);
+
+        cache.put("live", principal, new Date(System.currentTimeMillis() + 60000));
+        cache.put("dying", principal, new Date(System.currentTimeMillis() + 50));
+        cache.put("dead", principal, new Date(System.currentTimeMillis() - 1));
+
+        assertSame(principal, cache.get("live"));
+        assertSame(principal, cache.get("dying"));
+        assertNull(cache.get("dead"));
+        Thread.sleep(100);
+        assertNull(cache.get("dying"));
+        assertSame(principal, cache.get("live"));
+
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Test that the cache never grows past its bound, and that the least recently used tokens go first
+     * @throws Exception
+     */
+    @Test
+    public void put_boundedLeastRecentlyUsedTest() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(160, 300);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 2L, "jti", null);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("token" + i, principal, null);
+            // Keeps the first token in use throughout
+            assertSame(principal, cache.get("token0"));
+            assertTrue(cache.size() <= 160);
+        }
+
+        assertSame(principal, cache.get("token0"));
+        assertSame(principal, cache.get("token9999"));
+        assertNull(cache.get("token1"));
+    }
+
+    /**
+     * Test that the purge drops expired tokens nobody looks up again, and that invalidated tokens are gone
+     * @throws Exception
+     */
+    @Test
+    public void purgeExpired_andInvalidateTest() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(100, 300);
+        JWTPrincipal principal = new JWTPrincipal("testUsername", 1L, 2L, "jti", null);
+        cache.put("dying", principal, new Date(System.currentTimeMillis() + 50));
+        cache.put("live", principal, null);
+        cache.put("revoked", principal, null);
+
+        cache.invalidate("revoked");
+        Thread.sleep(100);
+        cache.purgeExpired();
+
+        assertEquals(1, cache.size());
+        assertSame(principal, cache.get("live"));
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a price change reaches the carts holding the item, both those written to the database and those
+ * only held in memory by the write-behind cart store, and that polling finds changes that commit late.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"cart.store.mode=write-behind", "cart.reprice.poll-interval-millis=3600000",
+        "cart.reprice.batch-size=2"})
+public class CartRepricerTest {
+
+    @Autowired
+    private CartRepricer cartRepricer;
+
+    @Autowired
+    private CartStore cartStore;
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Item item;
+
+    private Item other;
+
+    @Before
+    public void setup() {
+        item = new Item();
+        item.setName("Repriced Widget");
+        item.setDescription("A widget whose price changes");
+        item.setPrice(Money.ofMinor(500));
+        item = itemRepository.save(item);
+        other = itemRepository.findById(1L).get();
+    }
+
+    /**
+     * Test that a price change found by polling reprices stored and held carts, leaving other lines alone
+     * @throws Exception
+     */
+    @Test
+    public void priceChangeTest() throws Exception {
+        cartRepricer.poll();
+        List<Long> stored = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Cart cart = new Cart();
+            cart.addItem(item, 2);
+            cart.addItem(other, 1);
+            stored.add(cartRepository.save(cart).getId());
+        }
+        long held = cartRepository.save(new Cart()).getId();
+        cartStore.modify(held, cart -> {
+            cart.addItem(item, 3);
+            return cart;
+        });
+
+        setPrice(item, 700, System.currentTimeMillis());
+        assertEquals(1, cartRepricer.poll());
+        // Runs are queued one after another, so the run polling started has repriced everything by the time
+        // this one finds nothing left to do
+        assertEquals(0, (long) cartRepricer.priceChanged(item.getId()).get(30, TimeUnit.SECONDS));
+        assertPrice(stored, held, 700);
+
+        setPrice(item, 800, System.currentTimeMillis());
+        assertEquals(6, (long) cartRepricer.priceChanged(item.getId()).get(30, TimeUnit.SECONDS));
+        assertPrice(stored, held, 800);
+    }
+
+    /**
+     * Test that a change stamped before the newest one already seen, as by a transaction that committed late, is
+     * still found, and only once
+     * @throws Exception
+     */
+    @Test
+    public void lateCommitTest() throws Exception {
+        Item late = new Item();
+        late.setName("Late Widget");
+        late.setDescription("A widget whose price change commits late");
+        late.setPrice(Money.ofMinor(100));
+        late = itemRepository.save(late);
+        cartRepricer.poll();
+        long now = System.currentTimeMillis();
+
+        setPrice(item, 600, now);
+        assertEquals(1, cartRepricer.poll());
+
+        setPrice(late, 150, now - 1000);
+        assertEquals(1, cartRepricer.poll());
+        assertEquals(0, cartRepricer.poll());
+    }
+
+    private void setPrice(Item changed, long price, long modifiedAt) {
+        jdbcTemplate.update("update item set price = ?, last_modified = ? where id = ?", price,
+                new Timestamp(modifiedAt), changed.getId());
+    }
+
+    private void assertPrice(List<Long> stored, long held, long price) {
+        for (long cartId : stored) {
+            Cart cart = cartStore.get(cartId);
+            assertEquals(Money.ofMinor(price), cart.getLine(item.getId()).getUnitPrice());
+            assertEquals(Money.ofMinor(price * 2).plus(other.getPrice()), cart.getTotal());
+        }
+        assertEquals(Money.ofMinor(price * 3), cartStore.get(held).getTotal());
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.CartLine;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers a single cart from many threads against the real database and checks that no update was lost:
+ * the line quantities and the total must account for exactly the operations that reported success.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class CartServiceConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 50;
+    private static final int ROUNDS = 20;
+
+    @Autowired
+    private CartService cartService;
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Item round;
+    private Item square;
+
+    @Before
+    public void setup() {
+        round = itemRepository.findById(1L).get();
+        square = itemRepository.findById(2L).get();
+    }
+
+    /**
+     * Test that with lock striping every parallel update is applied
+     * @throws Exception
+     */
+    @Test
+    public void parallelUpdates_stripedLockTest() throws Exception {
+        long cartId = cartRepository.save(new Cart()).getId();
+
+        int succeeded = hammer(cartService, cartId);
+
+        assertEquals(THREADS * OPERATIONS_PER_THREAD, succeeded);
+        assertConsistent(cartId, succeeded);
+    }
+
+    /**
+     * Test that without the local lock, optimistic versioning and retries still apply every update. Each round
+     * makes two writers load the same version of the cart before either saves, so one of them must lose at the
+     * database and retry. (Two writers at a time rather than a free-for-all, as the in-memory H2 used for tests
+     * can itself lose committed updates under heavier write contention on one row.)
+     * @throws Exception
+     */
+    @Test
+    public void parallelUpdates_optimisticOnlyTest() throws Exception {
+        CartService unlocked = new CartService(cartRepository, transactionManager, 5, 2, false, 1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        unlocked.bindTo(registry);
+        long cartId = cartRepository.save(new Cart()).getId();
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        for (int r = 0; r < ROUNDS; r++) {
+            CyclicBarrier loaded = new CyclicBarrier(2);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                futures.add(pool.submit(() -> {
+                    boolean[] waited = new boolean[1];
+                    unlocked.modify(cartId, cart -> {
+                        if (!waited[0]) {
+                            waited[0] = true;
+                            await(loaded);
+                        }
+                        cart.addItem(round, 2);
+                        cart.addItem(square, 1);
+                        return cart;
+                    });
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        }
+        pool.shutdown();
+
+        assertConsistent(cartId, 2 * ROUNDS);
+        assertTrue(registry.get("cart.update.conflicts").functionCounter().count() >= ROUNDS);
+    }
+
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await(1, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Every operation adds two round widgets and one square widget, so both lines and the total are a
+     * multiple of the number of successful operations.
+     */
+    private int hammer(CartService service, long cartId) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger succeeded = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    try {
+                        service.modify(cartId, cart -> {
+                            cart.addItem(round, 2);
+                            cart.addItem(square, 1);
+                            return cart;
+                        });
+                        succeeded.incrementAndGet();
+                    } catch (ConcurrencyFailureException e) {
+                        // Gave up after its retries; must not have left anything behind
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(2, TimeUnit.MINUTES);
+        }
+        pool.shutdown();
+        return succeeded.get();
+    }
+
+    private void assertConsistent(long cartId, int succeeded) {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            Cart cart = cartRepository.findById(cartId).get();
+            CartLine roundLine = cart.getLine(round.getId());
+            CartLine squareLine = cart.getLine(square.getId());
+            assertEquals(2 * succeeded, roundLine.getQuantity());
+            assertEquals(succeeded, squareLine.getQuantity());
+            Money expected = round.getPrice().times(2).plus(square.getPrice()).times(succeeded);
+            assertEquals(expected, cart.getTotal());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the write-behind cart store against the real database, with the timed flush pushed out of the way
+ * so the test decides when carts are written.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"cart.store.mode=write-behind", "cart.store.flush-interval-millis=3600000"})
+public class CartStoreTest {
+
+    @Autowired
+    private CartStore cartStore;
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Item round;
+
+    @Before
+    public void setup() {
+        round = itemRepository.findById(1L).get();
+    }
+
+    /**
+     * Test that edits stay in memory until flushed, and that repeated flushes keep updating the same rows
+     * @throws Exception
+     */
+    @Test
+    public void writeBehind_flushTest() throws Exception {
+        long cartId = cartRepository.save(new Cart()).getId();
+
+        String loaded = cartStore.revision(cartId);
+        cartStore.modify(cartId, cart -> { cart.addItem(round, 2); return cart; });
+        cartStore.modify(cartId, cart -> { cart.addItem(round, 1); return cart; });
+        String edited = cartStore.revision(cartId);
+        assertNotEquals(loaded, edited);
+
+        assertEquals(3, cartStore.get(cartId).getLine(round.getId()).getQuantity());
+        assertNull(stored(cartId).getLine(round.getId()));
+
+        cartStore.flush(cartId);
+        assertEquals(edited, cartStore.revision(cartId));
+
+        Cart stored = stored(cartId);
+        assertEquals(3, stored.getLine(round.getId()).getQuantity());
+        assertEquals(round.getPrice().times(3), stored.getTotal());
+        assertEquals(stored.getVersion(), cartStore.get(cartId).getVersion());
+        assertEquals(stored.getLine(round.getId()).getId(), cartStore.get(cartId).getLine(round.getId()).getId());
+
+        cartStore.modify(cartId, cart -> { cart.removeItem(round, 1); return cart; });
+        cartStore.flushAll();
+
+        stored = stored(cartId);
+        assertEquals(2, stored.getLine(round.getId()).getQuantity());
+        assertEquals(1, stored.getLines().size());
+
+        cartStore.modify(cartId, cart -> { cart.removeItem(round, 2); return cart; });
+        cartStore.flush(cartId);
+
+        stored = stored(cartId);
+        assertTrue(stored.getLines().isEmpty());
+        assertEquals(Money.ZERO, stored.getTotal());
+    }
+
+    /**
+     * Test that dropping a cart's unflushed edits hands back the stock they reserved and re-takes the stock of
+     * lines they removed, which the stored cart still holds
+     * @throws Exception
+     */
+    @Test
+    public void invalidate_releasesUnflushedTest() throws Exception {
+        long cartId = cartRepository.save(new Cart()).getId();
+        Item square = itemRepository.findById(2L).get();
+        add(cartId, round, 3);
+        add(cartId, square, 2);
+        cartStore.flush(cartId);
+        long roundAvailable = inventoryService.available(round.getId());
+        long squareAvailable = inventoryService.available(square.getId());
+
+        add(cartId, round, 4);
+        inventoryService.release(square.getId(), 1);
+        cartStore.modify(cartId, cart -> { cart.removeItem(square, 1); return cart; });
+        cartStore.invalidate(cartId);
+
+        assertEquals(roundAvailable, inventoryService.available(round.getId()));
+        assertEquals(squareAvailable, inventoryService.available(square.getId()));
+        assertEquals(3, cartStore.get(cartId).getLine(round.getId()).getQuantity());
+        assertEquals(2, cartStore.get(cartId).getLine(square.getId()).getQuantity());
+    }
+
+    /**
+     * Test that an edit arriving while an order is placed from the cart waits for it and lands on the reloaded
+     * cart instead of being dropped with the held copy
+     * @throws Exception
+     */
+    @Test
+    public void checkout_editsWaitTest() throws Exception {
+        long cartId = cartRepository.save(new Cart()).getId();
+        cartStore.modify(cartId, cart -> { cart.addItem(round, 1); return cart; });
+        CountDownLatch placing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Optional<String>> checkout = executor.submit(() -> cartStore.checkout(cartId, () -> {
+                placing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                assertEquals(1, stored(cartId).getLine(round.getId()).getQuantity());
+                return Optional.of("placed");
+            }));
+            assertTrue(placing.await(10, TimeUnit.SECONDS));
+            Future<?> edit = executor.submit(() -> cartStore.modify(cartId, cart -> {
+                cart.addItem(round, 2);
+                return cart;
+            }));
+            Thread.sleep(100);
+            assertFalse(edit.isDone());
+
+            release.countDown();
+
+            assertEquals("placed", checkout.get(10, TimeUnit.SECONDS).get());
+            edit.get(10, TimeUnit.SECONDS);
+            assertEquals(3, cartStore.get(cartId).getLine(round.getId()).getQuantity());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a missing cart is reported as empty rather than created
+     * @throws Exception
+     */
+    @Test
+    public void missingCartTest() throws Exception {
+        assertFalse(cartStore.modify(Long.MAX_VALUE, cart -> cart).isPresent());
+        assertNull(cartStore.get(Long.MAX_VALUE));
+        assertNull(cartStore.revision(Long.MAX_VALUE));
+    }
+
+    private void add(long cartId, Item item, int quantity) {
+        assertTrue(inventoryService.reserve(item.getId(), quantity));
+        cartStore.modify(cartId, cart -> { cart.addItem(item, quantity); return cart; });
+    }
+
+    private Cart stored(long cartId) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return entityManager.find(Cart.class, cartId).copy();
+        } finally {
+            entityManager.close();
+        }
+    }
+}
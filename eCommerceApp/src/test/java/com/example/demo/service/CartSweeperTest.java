@@ -0,0 +1,106 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the abandoned cart sweeper against the real database, using small batches so a run has to page
+ * through its candidates.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"cart.store.mode=write-behind", "cart.sweeper.interval-millis=3600000"})
+public class CartSweeperTest {
+
+    private static final long TTL = TimeUnit.DAYS.toMillis(7);
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private CartStore cartStore;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Item round;
+
+    @Before
+    public void setup() {
+        round = itemRepository.findById(1L).get();
+    }
+
+    /**
+     * Test that idle carts are emptied across several batches, handing back their stock, while recent, empty and
+     * in-use carts are left alone
+     * @throws Exception
+     */
+    @Test
+    public void sweepIdleCartsTest() throws Exception {
+        List<Long> idle = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            idle.add(cartWithItems(TTL + TimeUnit.HOURS.toMillis(i + 1)));
+        }
+        long recent = cartWithItems(TimeUnit.HOURS.toMillis(1));
+        long inUse = cartWithItems(TTL * 2);
+        cartStore.get(inUse);
+        long available = inventoryService.available(round.getId());
+
+        CartSweeper sweeper = new CartSweeper(jdbcTemplate, transactionManager, cartStore, inventoryService, TTL, 2, 100);
+        long reclaimed = sweeper.sweep();
+
+        assertTrue(reclaimed >= idle.size());
+        for (long cartId : idle) {
+            Cart cart = load(cartId);
+            assertTrue(cart.getLines().isEmpty());
+            assertEquals(Money.ZERO, cart.getTotal());
+        }
+        assertEquals(1, load(recent).getLines().size());
+        assertEquals(1, load(inUse).getLines().size());
+        assertEquals(available + 2 * idle.size(), inventoryService.available(round.getId()));
+
+        assertEquals(0, sweeper.sweep());
+    }
+
+    private long cartWithItems(long idleMillis) {
+        assertTrue(inventoryService.reserve(round.getId(), 2));
+        Cart cart = new Cart();
+        cart.addItem(round, 2);
+        long cartId = cartRepository.save(cart).getId();
+        jdbcTemplate.update("update cart set last_modified = ? where id = ?",
+                new Timestamp(System.currentTimeMillis() - idleMillis), cartId);
+        return cartId;
+    }
+
+    private Cart load(long cartId) {
+        return new TransactionTemplate(transactionManager).execute(status ->
+                cartRepository.findWithLinesById(cartId).get().copy());
+    }
+}
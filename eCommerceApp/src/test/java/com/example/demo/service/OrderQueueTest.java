@@ -0,0 +1,274 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.User;
+import com.example.demo.model.persistence.repositories.CartRepository;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import com.example.demo.model.persistence.repositories.OrderRepository;
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.responses.OrderStatusResponse.Status;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionSystemException;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that orders accepted into the queue end up in the order tables with their stock taken, that an order
+ * whose stock is gone by the time it is written fails, and that shutdown writes what is still queued.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class OrderQueueTest {
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private CartStore cartStore;
+
+    @Autowired
+    private CartService cartService;
+
+    @Autowired
+    private OrderQueue orderQueue;
+
+    @Autowired
+    private OrderIdGenerator orderIdGenerator;
+
+    @Autowired
+    private SubmissionKeyService submissionKeyService;
+
+    @Autowired
+    private InventoryService inventoryService;
+
+    @Autowired
+    private OrderStatsService orderStatsService;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private CartRepository cartRepository;
+
+    @Autowired
+    private OrderRepository orderRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Item item;
+
+    @Before
+    public void setup() {
+        item = new Item();
+        item.setName("Queued Widget");
+        item.setDescription("A widget ordered through the queue");
+        item.setPrice(Money.ofMinor(250));
+        item = itemRepository.save(item);
+        jdbcTemplate.update("insert into item_stock (item_id, quantity) values (?, ?)", item.getId(), 5);
+        inventoryService.reconcile();
+    }
+
+    /**
+     * Test that an accepted order empties the cart straight away and is written with its lines and stock later
+     * @throws Exception
+     */
+    @Test
+    public void enqueueTest() throws Exception {
+        User user = userWithCart();
+        long cartId = user.getCart().getId();
+        addToCart(cartId, 3);
+
+        QueuedOrder order = orderService.enqueue(cartId).get();
+
+        assertTrue(cartStore.get(cartId).getLines().isEmpty());
+        assertEquals(Status.PLACED, awaitStatus(order.getId(), user.getId()));
+        assertEquals(750L, (long) jdbcTemplate.queryForObject("select total from user_order where id = ? and user_id = ?",
+                Long.class, order.getId(), user.getId()));
+        assertEquals(3, (int) jdbcTemplate.queryForObject("select quantity from user_order_line where order_id = ?",
+                Integer.class, order.getId()));
+        // The line keeps the price it was ordered at
+        jdbcTemplate.update("update item set price = 300 where id = ?", item.getId());
+        assertEquals(250L, (long) jdbcTemplate.queryForObject("select unit_price from user_order_line where order_id = ?",
+                Long.class, order.getId()));
+        assertEquals(2, stockInTable());
+        assertNull(orderService.status(order.getId(), user.getId() + 1));
+
+        try {
+            orderService.enqueue(cartId);
+            fail("An empty cart was accepted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that an order whose stock left the table before it was written fails and hands back its reservation
+     * @throws Exception
+     */
+    @Test
+    public void outOfStockTest() throws Exception {
+        User user = userWithCart();
+        long cartId = user.getCart().getId();
+        addToCart(cartId, 2);
+        jdbcTemplate.update("update item_stock set quantity = 1 where item_id = ?", item.getId());
+        long available = inventoryService.available(item.getId());
+
+        QueuedOrder order = orderService.enqueue(cartId).get();
+
+        assertEquals(Status.FAILED, awaitStatus(order.getId(), user.getId()));
+        assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from user_order where id = ?",
+                Integer.class, order.getId()));
+        assertEquals(1, stockInTable());
+        assertEquals(available + 2, inventoryService.available(item.getId()));
+    }
+
+    /**
+     * Test that when the submission key's transaction can't commit, a cart held by the write-behind store keeps
+     * its lines and their reserved stock, and the order can be placed once the commit goes through
+     * @throws Exception
+     */
+    @Test
+    public void enqueue_failedCommitKeepsCartTest() throws Exception {
+        User user = userWithCart();
+        long cartId = user.getCart().getId();
+        addToCart(cartId, 3);
+        long available = inventoryService.available(item.getId());
+        String key = "enqueue-" + cartId;
+        CartStore writeBehind = new CartStore(cartService, cartRepository, inventoryService, entityManagerFactory,
+                "write-behind", 100, TimeUnit.MINUTES.toMillis(10));
+        PlatformTransactionManager failingCommit = new PlatformTransactionManager() {
+            @Override
+            public TransactionStatus getTransaction(TransactionDefinition definition) {
+                return transactionManager.getTransaction(definition);
+            }
+
+            @Override
+            public void commit(TransactionStatus status) {
+                transactionManager.rollback(status);
+                throw new TransactionSystemException("Commit failed");
+            }
+
+            @Override
+            public void rollback(TransactionStatus status) {
+                transactionManager.rollback(status);
+            }
+        };
+        try {
+            try {
+                queuingService(writeBehind, failingCommit).enqueue(cartId, key);
+                fail("The order was accepted without its key");
+            } catch (TransactionSystemException e) {
+                // expected
+            }
+
+            assertEquals(3, writeBehind.get(cartId).getLine(item.getId()).getQuantity());
+            assertEquals(available, inventoryService.available(item.getId()));
+            assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from submission_key where id = ?",
+                    Integer.class, key));
+
+            QueuedOrder order = queuingService(writeBehind, transactionManager).enqueue(cartId, key).get();
+
+            assertTrue(writeBehind.get(cartId).getLines().isEmpty());
+            assertEquals(Status.PLACED, awaitStatus(order.getId(), user.getId()));
+            assertEquals(2, stockInTable());
+        } finally {
+            writeBehind.shutdown();
+        }
+    }
+
+    /**
+     * Test that orders still queued at shutdown are written before it returns
+     * @throws Exception
+     */
+    @Test
+    public void shutdownDrainsTest() throws Exception {
+        User user = userWithCart();
+        OrderQueue queue = new OrderQueue(jdbcTemplate, transactionManager, inventoryService, orderStatsService, 100, 2,
+                TimeUnit.MINUTES.toMillis(1), TimeUnit.SECONDS.toMillis(30));
+        Item plain = itemRepository.findById(2L).get();
+        Cart cart = new Cart();
+        cart.setUser(user);
+        cart.addItem(plain, 2);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(queue.claim());
+            QueuedOrder order = QueuedOrder.fromCart(1_000_000L + USERS.get() * 100 + i, cart);
+            queue.enqueue(order);
+            ids.add(order.getId());
+        }
+
+        queue.shutdown();
+
+        for (long id : ids) {
+            assertEquals(2, (int) jdbcTemplate.queryForObject(
+                    "select quantity from user_order_line where order_id = ?", Integer.class, id));
+        }
+        assertFalse(queue.claim());
+    }
+
+    private User userWithCart() {
+        User user = new User();
+        user.setUsername("queued" + USERS.incrementAndGet());
+        user.setPassword("not a real hash");
+        Cart cart = new Cart();
+        cart.setUser(user);
+        user.setCart(cart);
+        return userRepository.save(user);
+    }
+
+    private void addToCart(long cartId, int quantity) {
+        assertTrue(inventoryService.reserve(item.getId(), quantity));
+        cartStore.modify(cartId, cart -> {
+            cart.addItem(item, quantity);
+            return cart;
+        });
+    }
+
+    private OrderService queuingService(CartStore store, PlatformTransactionManager transactions) {
+        return new OrderService(cartRepository, orderRepository, store, inventoryService, itemRepository, orderQueue,
+                orderIdGenerator, orderStatsService, submissionKeyService, transactions, "async");
+    }
+
+    private long stockInTable() {
+        return jdbcTemplate.queryForObject("select quantity from item_stock where item_id = ?", Long.class, item.getId());
+    }
+
+    private Status awaitStatus(long orderId, long userId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        Status status = orderService.status(orderId, userId);
+        while (status == Status.QUEUED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            status = orderService.status(orderId, userId);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.Cart;
+import com.example.demo.model.persistence.Item;
+import com.example.demo.model.persistence.Money;
+import com.example.demo.model.persistence.User;
+import com.example.demo.model.persistence.repositories.ItemRepository;
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.responses.OrderStatsResponse;
+import com.example.demo.model.responses.OrderStatusResponse.Status;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that orders placed directly and through the queue both reach the stats tables and their in-memory
+ * mirrors, and that the mirrors reload from the flushed tables to the same values.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class OrderStatsServiceTest {
+
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    @Autowired
+    private OrderStatsService orderStatsService;
+
+    @Autowired
+    private OrderService orderService;
+
+    @Autowired
+    private CartStore cartStore;
+
+    @Autowired
+    private ItemRepository itemRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Item item;
+
+    private Item other;
+
+    @Before
+    public void setup() {
+        item = new Item();
+        item.setName("Counted Widget");
+        item.setDescription("A widget whose sales are counted");
+        item.setPrice(Money.ofMinor(400));
+        item = itemRepository.save(item);
+        other = itemRepository.findById(2L).get();
+    }
+
+    /**
+     * Test that placed and queued orders add to the user's, the item's and the day's totals, in the tables and
+     * in memory
+     * @throws Exception
+     */
+    @Test
+    public void recordOrdersTest() throws Exception {
+        User user = userWithCart();
+        long cartId = user.getCart().getId();
+        OrderStatsResponse today = orderStatsService.day(LocalDate.now());
+
+        addToCart(cartId, item, 2);
+        addToCart(cartId, other, 1);
+        orderService.submit(cartId);
+        addToCart(cartId, item, 3);
+        QueuedOrder queued = orderService.enqueue(cartId).get();
+        awaitPlaced(queued.getId(), user.getId());
+
+        Money spend = Money.ofMinor(400 * 5).plus(other.getPrice());
+        assertTotals(orderStatsService.user(user.getId()), 2, 6, spend);
+        assertTotals(orderStatsService.item(item.getId()), 2, 5, Money.ofMinor(400 * 5));
+        OrderStatsResponse day = orderStatsService.day(LocalDate.now());
+        assertTotals(day, today.getOrders() + 2, today.getUnits() + 6, today.getTotal().plus(spend));
+        assertEquals(spend.getMinorUnits(), (long) jdbcTemplate.queryForObject(
+                "select total from user_order_stats where user_id = ?", Long.class, user.getId()));
+
+        // Item and daily rows are written by the flush, outside the orders' transactions
+        orderStatsService.flush();
+        assertEquals(5L, (long) jdbcTemplate.queryForObject(
+                "select units from item_order_stats where item_id = ?", Long.class, item.getId()));
+
+        OrderStatsService reloaded = new OrderStatsService(jdbcTemplate, transactionManager);
+        reloaded.init();
+        assertTotals(reloaded.user(user.getId()), 2, 6, spend);
+        assertTotals(reloaded.item(item.getId()), 2, 5, Money.ofMinor(400 * 5));
+        assertTotals(reloaded.day(LocalDate.now()), day.getOrders(), day.getUnits(), day.getTotal());
+    }
+
+    /**
+     * Test that stats can't be recorded outside the transaction writing the orders
+     * @throws Exception
+     */
+    @Test(expected = IllegalStateException.class)
+    public void recordOutsideTransactionTest() throws Exception {
+        orderStatsService.record(Collections.singletonList(QueuedOrder.fromCart(1L, cartOf(userWithCart()))));
+    }
+
+    private void assertTotals(OrderStatsResponse stats, long orders, long units, Money total) {
+        assertEquals(orders, stats.getOrders());
+        assertEquals(units, stats.getUnits());
+        assertEquals(total, stats.getTotal());
+    }
+
+    private Cart cartOf(User user) {
+        Cart cart = new Cart();
+        cart.setUser(user);
+        cart.addItem(item, 1);
+        return cart;
+    }
+
+    private User userWithCart() {
+        User user = new User();
+        user.setUsername("counted" + USERS.incrementAndGet());
+        user.setPassword("not a real hash");
+        Cart cart = new Cart();
+        cart.setUser(user);
+        user.setCart(cart);
+        return userRepository.save(user);
+    }
+
+    private void addToCart(long cartId, Item item, int quantity) {
+        cartStore.modify(cartId, cart -> {
+            cart.addItem(item, quantity);
+            return cart;
+        });
+    }
+
+    private void awaitPlaced(long orderId, long userId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (orderService.status(orderId, userId) == Status.QUEUED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(Status.PLACED, orderService.status(orderId, userId));
+    }
+}
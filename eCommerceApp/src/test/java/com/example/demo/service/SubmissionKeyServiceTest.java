@@ -0,0 +1,168 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.SubmissionKey;
+import com.example.demo.model.persistence.repositories.SubmissionKeyRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SubmissionKeyServiceTest {
+
+    private SubmissionKeyRepository submissionKeyRepository = mock(SubmissionKeyRepository.class);
+
+    private JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    private SubmissionKeyService submissionKeyService;
+
+    @Before
+    public void setup() {
+        when(submissionKeyRepository.findById(anyString())).thenReturn(Optional.empty());
+        submissionKeyService = new SubmissionKeyService(submissionKeyRepository, jdbcTemplate, TimeUnit.HOURS.toMillis(1),
+                100);
+    }
+
+    /**
+     * Test that a key is only submitted once per user, and that the submission is handed the key to record
+     * @throws Exception
+     */
+    @Test
+    public void submit_replayTest() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        List<String> ids = new ArrayList<>();
+
+        SubmittedOrder first = submissionKeyService.submit(1L, "key", id -> {
+            ids.add(id);
+            return new SubmittedOrder(runs.incrementAndGet(), false);
+        });
+        SubmittedOrder again = submissionKeyService.submit(1L, "key", id -> new SubmittedOrder(runs.incrementAndGet(), false));
+        SubmittedOrder otherUser = submissionKeyService.submit(2L, "key", id -> {
+            ids.add(id);
+            return new SubmittedOrder(runs.incrementAndGet(), false);
+        });
+
+        assertEquals(1, first.getOrderId());
+        assertSame(first, again);
+        assertEquals(2, otherUser.getOrderId());
+        assertEquals(Arrays.asList("1:key", "2:key"), ids);
+    }
+
+    /**
+     * Test that a submission failing on a key recorded by another one in the meantime gets that order back
+     * @throws Exception
+     */
+    @Test
+    public void submit_duplicateRowTest() throws Exception {
+        when(submissionKeyRepository.findById("1:key")).thenReturn(Optional.empty()).thenReturn(Optional.of(
+                new SubmissionKey("1:key", 42L, false, new Date(System.currentTimeMillis() + 60000))));
+
+        SubmittedOrder order = submissionKeyService.submit(1L, "key", id -> {
+            throw new DuplicateKeyException("Key " + id + " recorded already");
+        });
+
+        assertEquals(42L, order.getOrderId());
+        assertFalse(order.isQueued());
+    }
+
+    /**
+     * Test that recording a key inserts its row, after clearing an expired row left for the same key
+     * @throws Exception
+     */
+    @Test
+    public void recordTest() throws Exception {
+        submissionKeyService.record("1:key", new SubmittedOrder(7L, true));
+
+        verify(jdbcTemplate).update(startsWith("delete from submission_key"), eq("1:key"), any(Date.class));
+        verify(jdbcTemplate).update(startsWith("insert into submission_key"), eq("1:key"), eq(7L), eq(true),
+                any(Date.class));
+    }
+
+    /**
+     * Test that a key found in the table is answered from it without submitting
+     * @throws Exception
+     */
+    @Test
+    public void submit_storedKeyTest() throws Exception {
+        when(submissionKeyRepository.findById("1:key")).thenReturn(Optional.of(
+                new SubmissionKey("1:key", 42L, true, new Date(System.currentTimeMillis() + 60000))));
+
+        SubmittedOrder order = submissionKeyService.submit(1L, "key", id -> {
+            throw new AssertionError("Submitted again");
+        });
+
+        assertEquals(42L, order.getOrderId());
+        assertTrue(order.isQueued());
+    }
+
+    /**
+     * Test that a failed submission leaves the key free for a retry
+     * @throws Exception
+     */
+    @Test
+    public void submit_failureNotRecordedTest() throws Exception {
+        assertNull(submissionKeyService.submit(1L, "key", id -> null));
+
+        SubmittedOrder order = submissionKeyService.submit(1L, "key", id -> new SubmittedOrder(7L, false));
+
+        assertEquals(7L, order.getOrderId());
+    }
+
+    /**
+     * Test that submissions with the same key arriving together run once and all get its order
+     * @throws Exception
+     */
+    @Test
+    public void submit_concurrentDuplicatesTest() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<SubmittedOrder> first = executor.submit(() -> submissionKeyService.submit(1L, "key", id -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new SubmittedOrder(runs.incrementAndGet(), false);
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<?>[] duplicates = new Future<?>[3];
+            for (int i = 0; i < duplicates.length; i++) {
+                duplicates[i] = executor.submit(() -> submissionKeyService.submit(1L, "key",
+                        id -> new SubmittedOrder(runs.incrementAndGet(), false)));
+            }
+            release.countDown();
+
+            assertEquals(1L, first.get(10, TimeUnit.SECONDS).getOrderId());
+            for (Future<?> duplicate : duplicates) {
+                assertEquals(1L, ((SubmittedOrder) duplicate.get(10, TimeUnit.SECONDS)).getOrderId());
+            }
+            assertEquals(1, runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.demo.service;
+
+import com.example.demo.model.persistence.repositories.UserRepository;
+import com.example.demo.model.requests.CreateUserRequest;
+import com.example.demo.model.responses.BulkCreateUserResponse;
+import com.example.demo.model.responses.BulkCreateUserResult.Status;
+import com.example.demo.security.PasswordHashingExecutor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class UserProvisioningServiceTest {
+
+    private UserRepository userRepository = mock(UserRepository.class);
+
+    private UsernameIndex usernameIndex = mock(UsernameIndex.class);
+
+    private JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    private BCryptPasswordEncoder encoder = mock(BCryptPasswordEncoder.class);
+
+    private UserProvisioningService service;
+
+    @Before
+    public void setup() {
+        when(usernameIndex.mightExist(anyString())).thenReturn(true);
+        service = new UserProvisioningService(userRepository, usernameIndex, jdbcTemplate, mock(PlatformTransactionManager.class),
+                mock(UserCache.class), encoder, new PasswordHashingExecutor(2, 8, 5000, 1), new ObjectMapper(), true,
+                3, 2, 1, 0);
+    }
+
+    /**
+     * Test that every invalid row is reported and nothing is hashed or written
+     * @throws Exception
+     */
+    @Test
+    public void provision_rejectsInvalidRowsTest() throws Exception {
+        when(userRepository.findExistingUsernames(anyCollection())).thenReturn(Collections.singletonList("taken"));
+
+        BulkCreateUserResponse response = service.provision(Arrays.asList(
+                request("shortPassword", "short"),
+                request("taken", "testPassword"),
+                request("", "testPassword")));
+
+        assertEquals(0, response.getCreated());
+        assertEquals(3, response.getRejected());
+        assertEquals(Status.INVALID_PASSWORD, response.getResults().get(0).getStatus());
+        assertEquals(Status.USERNAME_TAKEN, response.getResults().get(1).getStatus());
+        assertEquals(Status.INVALID_USERNAME, response.getResults().get(2).getStatus());
+        verify(encoder, never()).encode(anyString());
+        verifyZeroInteractions(jdbcTemplate);
+    }
+
+    /**
+     * Test that a username repeated within the request is only considered once
+     * @throws Exception
+     */
+    @Test
+    public void provision_duplicateInRequestTest() throws Exception {
+        when(userRepository.findExistingUsernames(anyCollection())).thenReturn(Collections.singletonList("same"));
+
+        BulkCreateUserResponse response = service.provision(Arrays.asList(
+                request("same", "testPassword"),
+                request("same", "testPassword")));
+
+        assertEquals(Status.USERNAME_TAKEN, response.getResults().get(0).getStatus());
+        assertEquals(Status.DUPLICATE_IN_REQUEST, response.getResults().get(1).getStatus());
+    }
+
+    /**
+     * Test that a request over the size limit is refused while streaming it in
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void provision_tooManyUsersTest() throws Exception {
+        String body = "[{\"username\":\"a\"},{\"username\":\"b\"},{\"username\":\"c\"},{\"username\":\"d\"}]";
+
+        service.provision(new ByteArrayInputStream(body.getBytes()));
+    }
+
+    /**
+     * Test that names the index rules out are never looked up in the user table
+     * @throws Exception
+     */
+    @Test
+    public void provision_skipsLookupForUnindexedNamesTest() throws Exception {
+        when(usernameIndex.mightExist("maybe")).thenReturn(true);
+        when(usernameIndex.mightExist("fresh")).thenReturn(false);
+        when(userRepository.findExistingUsernames(anyCollection())).thenReturn(Collections.singletonList("maybe"));
+
+        BulkCreateUserResponse response = service.provision(Arrays.asList(
+                request("maybe", "testPassword"),
+                request("short", "short")));
+
+        assertEquals(Status.USERNAME_TAKEN, response.getResults().get(0).getStatus());
+        verify(userRepository).findExistingUsernames(Collections.singletonList("maybe"));
+    }
+
+    /**
+     * Test that each chunk is written as soon as its passwords are hashed, rather than after hashing everything
+     * @throws Exception
+     */
+    @Test
+    public void provision_hashesChunkByChunkTest() throws Exception {
+        when(usernameIndex.mightExist(anyString())).thenReturn(false);
+        AtomicInteger hashed = new AtomicInteger();
+        when(encoder.encode(anyString())).thenAnswer(invocation -> "hash" + hashed.incrementAndGet());
+        List<Integer> hashedAtInsert = new ArrayList<>();
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(invocation -> {
+            hashedAtInsert.add(hashed.get());
+            return hashedAtInsert.size() == 1 ? new long[] {1, 2} : new long[] {3};
+        });
+
+        BulkCreateUserResponse response = service.provision(Arrays.asList(
+                request("first", "testPassword"),
+                request("second", "testPassword"),
+                request("third", "testPassword")));
+
+        assertEquals(3, response.getCreated());
+        assertEquals(Arrays.asList(2, 3), hashedAtInsert);
+        assertEquals(3L, (long) response.getResults().get(2).getId());
+    }
+
+    private static CreateUserRequest request(String username, String password) {
+        CreateUserRequest request = new CreateUserRequest();
+        request.setUsername(username);
+        request.setPassword(password);
+        request.setConfirmPassword(password);
+        return request;
+    }
+}
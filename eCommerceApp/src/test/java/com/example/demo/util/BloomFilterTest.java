@@ -0,0 +1,42 @@
+package com.example.demo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+
+    /**
+     * Test that every value put is reported as possibly present
+     * @throws Exception
+     */
+    @Test
+    public void mightContain_noFalseNegativesTest() throws Exception {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.put("value-" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("value-" + i));
+        }
+    }
+
+    /**
+     * Test that the false positive rate stays near the configured rate at the expected size
+     * @throws Exception
+     */
+    @Test
+    public void mightContain_falsePositiveRateTest() throws Exception {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("present-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("absent-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.demo.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StripedCounterTest {
+
+    /**
+     * Test that threads taking from the same counter at once never take more than it holds, and take all of it
+     * @throws Exception
+     */
+    @Test
+    public void tryTake_neverOversellsTest() throws Exception {
+        StripedCounter counter = new StripedCounter(10000, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> takers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            takers.add(executor.submit(() -> {
+                start.await();
+                int taken = 0;
+                for (int i = 0; i < 5000; i++) {
+                    if (counter.tryTake(1 + i % 3)) {
+                        taken += 1 + i % 3;
+                    }
+                }
+                return taken;
+            }));
+        }
+        start.countDown();
+        long taken = 0;
+        for (Future<Integer> taker : takers) {
+            taken += taker.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(10000 - taken, counter.sum());
+        assertTrue(counter.sum() >= 0);
+        assertTrue("left over: " + counter.sum(), counter.sum() < 3);
+    }
+
+    /**
+     * Test that a reduce beyond what the counter holds is owed and paid off by later adds
+     * @throws Exception
+     */
+    @Test
+    public void reduce_debtTest() throws Exception {
+        StripedCounter counter = new StripedCounter(5, 4);
+        counter.reduce(8);
+        assertEquals(-3, counter.sum());
+        assertFalse(counter.tryTake(1));
+
+        counter.add(4);
+        assertEquals(1, counter.sum());
+        assertTrue(counter.tryTake(1));
+        assertFalse(counter.tryTake(1));
+    }
+}